@@ -0,0 +1,108 @@
+package com.github.webee.promise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 6级变换链的吞吐量: Promise对比CompletableFuture, 以及两者之间的转换
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainBenchmark {
+    private static final int STAGES = 6;
+    private static final Transform<Integer, Integer> INC = v -> v + 1;
+    private static final Function<Integer, Integer> CF_INC = v -> v + 1;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Integer promiseSync() throws Throwable {
+        Promise<Integer> p = Promise.resolve(0);
+        for (int i = 0; i < STAGES; i++) {
+            p = p.then(PromiseExecutors.syncExecutor(), INC);
+        }
+        return p.await();
+    }
+
+    @Benchmark
+    public Integer completableFutureSync() {
+        CompletableFuture<Integer> f = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < STAGES; i++) {
+            f = f.thenApply(CF_INC);
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public Integer promiseAsync() throws Throwable {
+        Promise<Integer> p = Promise.resolve(0);
+        for (int i = 0; i < STAGES; i++) {
+            p = p.then(executor, INC);
+        }
+        return p.await();
+    }
+
+    @Benchmark
+    public Integer completableFutureAsync() {
+        CompletableFuture<Integer> f = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < STAGES; i++) {
+            f = f.thenApplyAsync(CF_INC, executor);
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public Integer promiseToCompletableFuture() {
+        Promise<Integer> p = Promise.resolve(0);
+        for (int i = 0; i < STAGES / 2; i++) {
+            p = p.then(PromiseExecutors.syncExecutor(), INC);
+        }
+        CompletableFuture<Integer> f = CompletionStages.toCompletableFuture(p);
+        for (int i = 0; i < STAGES / 2; i++) {
+            f = f.thenApply(CF_INC);
+        }
+        return f.join();
+    }
+
+    @Benchmark
+    public Integer completableFutureToPromise() throws Throwable {
+        CompletableFuture<Integer> f = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < STAGES / 2; i++) {
+            f = f.thenApply(CF_INC);
+        }
+        Promise<Integer> p = CompletionStages.from(f);
+        for (int i = 0; i < STAGES / 2; i++) {
+            p = p.then(PromiseExecutors.syncExecutor(), INC);
+        }
+        return p.await();
+    }
+}
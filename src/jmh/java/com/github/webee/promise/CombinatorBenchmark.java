@@ -0,0 +1,67 @@
+package com.github.webee.promise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * all/race的吞吐量: 组合size个pending的Promise, 再依次fulfill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CombinatorBenchmark {
+    // 输入数
+    @Param({"1", "10", "100"})
+    public int size;
+
+    @Benchmark
+    public Iterable<Integer> all() throws Throwable {
+        List<Deferred<Integer>> deferreds = deferreds();
+        Promise<Iterable<Integer>> p = Promise.all(promises(deferreds));
+        for (int i = 0; i < deferreds.size(); i++) {
+            deferreds.get(i).fulfill(i);
+        }
+        return p.await();
+    }
+
+    @Benchmark
+    public Integer race() throws Throwable {
+        List<Deferred<Integer>> deferreds = deferreds();
+        Promise<Integer> p = Promise.race(promises(deferreds));
+        for (int i = 0; i < deferreds.size(); i++) {
+            deferreds.get(i).fulfill(i);
+        }
+        return p.await();
+    }
+
+    private List<Deferred<Integer>> deferreds() {
+        List<Deferred<Integer>> deferreds = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            deferreds.add(new Deferred<Integer>());
+        }
+        return deferreds;
+    }
+
+    private static List<Promise<Integer>> promises(List<Deferred<Integer>> deferreds) {
+        List<Promise<Integer>> promises = new ArrayList<>(deferreds.size());
+        for (Deferred<Integer> d : deferreds) {
+            promises.add(d.promise);
+        }
+        return promises;
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.webee.promise;
+
+import com.github.webee.promise.functions.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回调执行的吞吐量: then链深度, 同一个Promise上的回调扇出;
+ * executor参数对比同步执行器和默认执行器
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromiseBenchmark {
+    private static final Transform<Integer, Integer> INC = v -> v + 1;
+
+    // then链深度, 回调数
+    @Param({"1", "10", "100"})
+    public int size;
+
+    @Param({"sync", "default"})
+    public String executor;
+
+    private Executor exec;
+
+    @Setup
+    public void setup() {
+        exec = "sync".equals(executor) ? PromiseExecutors.syncExecutor() : PromiseExecutors.defaultExecutor();
+    }
+
+    /**
+     * 在已经fulfilled的Promise上建立then链
+     */
+    @Benchmark
+    public Integer thenChainResolved() throws Throwable {
+        Promise<Integer> p = Promise.resolve(0);
+        for (int i = 0; i < size; i++) {
+            p = p.then(exec, INC);
+        }
+        return p.await();
+    }
+
+    /**
+     * 先建立then链再fulfill, 包括回调的注册和派发
+     */
+    @Benchmark
+    public Integer thenChainPending() throws Throwable {
+        Deferred<Integer> d = new Deferred<>();
+        Promise<Integer> p = d.promise;
+        for (int i = 0; i < size; i++) {
+            p = p.then(exec, INC);
+        }
+        d.fulfill(0);
+        return p.await();
+    }
+
+    /**
+     * 同一个Promise上注册size个回调再fulfill, 等待所有回调执行完
+     */
+    @Benchmark
+    public void fanOut() throws InterruptedException {
+        Deferred<Integer> d = new Deferred<>();
+        final CountDownLatch done = new CountDownLatch(size);
+        Action<Integer> handler = v -> done.countDown();
+        for (int i = 0; i < size; i++) {
+            d.promise.fulfilled(exec, handler);
+        }
+        d.fulfill(0);
+        done.await();
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.webee.promise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个Promise的结束和等待: Deferred fulfill的吞吐量, 以及await的延迟
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SettleBenchmark {
+    /**
+     * 没有回调时fulfill的成本
+     */
+    @Benchmark
+    public Promise<Integer> deferredFulfill() {
+        Deferred<Integer> d = new Deferred<>();
+        d.fulfill(1);
+        return d.promise;
+    }
+
+    /**
+     * 已经fulfilled的Promise的await
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer awaitResolved() throws Throwable {
+        return Promise.resolve(1).await();
+    }
+
+    /**
+     * 在默认执行器上fulfill, 当前线程await: 跨线程唤醒的延迟
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Integer awaitHandoff() throws Throwable {
+        final Deferred<Integer> d = new Deferred<>();
+        PromiseExecutors.defaultExecutor().execute(() -> d.fulfill(1));
+        return d.promise.await();
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.webee.promise;
+
+import com.github.webee.promise.functions.Action;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 有一个状态监听时update的吞吐量.
+ * 默认执行器上不合并的监听每次update都提交一个任务, 缓存线程池会无限创建线程, 所以不测
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusBenchmark {
+    @Param({"sync", "sync-conflating", "default-conflating"})
+    public String listener;
+
+    private Deferred<Integer> updating;
+    private int status;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        updating = new Deferred<>();
+        Action<Integer> action = bh::consume;
+        if ("sync".equals(listener)) {
+            updating.promise.status(PromiseExecutors.syncExecutor(), action);
+        } else if ("sync-conflating".equals(listener)) {
+            updating.promise.status(PromiseExecutors.syncExecutor(), action, true);
+        } else {
+            updating.promise.status(PromiseExecutors.defaultExecutor(), action, true);
+        }
+    }
+
+    @Benchmark
+    public void statusUpdate() {
+        updating.update(status++);
+    }
+}
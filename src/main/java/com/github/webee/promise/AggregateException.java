@@ -0,0 +1,19 @@
+package com.github.webee.promise;
+
+import java.util.List;
+
+/**
+ * 多个Promise rejected的原因的集合
+ */
+public class AggregateException extends RuntimeException {
+    private final List<Throwable> reasons;
+
+    public AggregateException(List<Throwable> reasons) {
+        super("all promises rejected: " + reasons.size() + " reasons", reasons.isEmpty() ? null : reasons.get(0));
+        this.reasons = reasons;
+    }
+
+    public List<Throwable> getReasons() {
+        return reasons;
+    }
+}
@@ -1,26 +1,20 @@
 package com.github.webee.promise;
 
-import com.github.webee.promise.functions.Fulfillment;
-
 /**
  * Created by webee on 16/11/19.
  */
 
 public class Deferred<T> implements Transition<T> {
     public final Promise<T> promise;
-    private Transition<T> transition;
+    private final Transition<T> transition;
 
     public Deferred() {
         this(null);
     }
 
     public Deferred(Object s) {
-        promise = new Promise<>(s, new Fulfillment<T>() {
-            @Override
-            public void run(Transition<T> transition) {
-                Deferred.this.transition = transition;
-            }
-        });
+        promise = new Promise<>(s);
+        transition = promise.transition();
     }
 
     @Override
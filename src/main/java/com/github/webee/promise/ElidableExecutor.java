@@ -0,0 +1,14 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 可省略再次提交的执行器: 在该执行器的线程上完成的Promise, 其在同一执行器上的回调直接在当前线程执行(有深度限制).
+ * 需要显式启用, 见PromiseExecutors.elidable
+ */
+public interface ElidableExecutor extends Executor {
+    /**
+     * @return 当前线程是否属于该执行器
+     */
+    boolean inExecutor();
+}
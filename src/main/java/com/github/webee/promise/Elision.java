@@ -0,0 +1,69 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 记录当前线程所属的执行器和内联执行的深度
+ */
+final class Elision {
+    // 超过深度则提交到执行器, 避免栈溢出和长时间占用当前线程
+    static final int MAX_DEPTH = 16;
+
+    private static final ThreadLocal<Frame> FRAME = new ThreadLocal<Frame>() {
+        @Override
+        protected Frame initialValue() {
+            return new Frame();
+        }
+    };
+
+    private static final class Frame {
+        Executor owner;
+        int depth;
+    }
+
+    private Elision() {
+    }
+
+    /**
+     * 执行task, 期间标记当前线程属于owner
+     */
+    static void runOwned(Runnable task, Executor owner) {
+        Frame frame = FRAME.get();
+        Executor prev = frame.owner;
+        frame.owner = owner;
+        try {
+            task.run();
+        } finally {
+            frame.owner = prev;
+        }
+    }
+
+    static boolean isOwner(Executor executor) {
+        return FRAME.get().owner == executor;
+    }
+
+    /**
+     * 当前线程属于executor并且没有超过深度时直接执行task
+     *
+     * @return 是否已经执行
+     */
+    static boolean runInline(Runnable task, ElidableExecutor executor) {
+        if (!executor.inExecutor()) {
+            return false;
+        }
+        Frame frame = FRAME.get();
+        if (frame.depth >= MAX_DEPTH) {
+            return false;
+        }
+        frame.depth++;
+        try {
+            task.run();
+        } catch (Throwable e) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        } finally {
+            frame.depth--;
+        }
+        return true;
+    }
+}
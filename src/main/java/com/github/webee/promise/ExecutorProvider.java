@@ -0,0 +1,11 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 默认执行器的SPI, 通过java.util.ServiceLoader加载:
+ * 在META-INF/services/com.github.webee.promise.ExecutorProvider中声明实现类
+ */
+public interface ExecutorProvider {
+    Executor defaultExecutor();
+}
@@ -0,0 +1,25 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 可以查看队列深度和活跃线程数的执行器
+ */
+public interface MonitoredExecutor extends Executor {
+    /**
+     * @return 排队等待执行的任务数
+     */
+    int getQueueSize();
+
+    /**
+     * @return 正在执行任务的线程数
+     */
+    int getActiveCount();
+
+    /**
+     * @return 当前线程数
+     */
+    int getPoolSize();
+
+    void shutdown();
+}
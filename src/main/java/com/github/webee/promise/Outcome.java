@@ -0,0 +1,29 @@
+package com.github.webee.promise;
+
+/**
+ * 一个已经结束的Promise的结果, fulfilled的值或者rejected的原因
+ */
+public class Outcome<T> {
+    public final boolean fulfilled;
+    public final T value;
+    public final Throwable reason;
+
+    private Outcome(boolean fulfilled, T value, Throwable reason) {
+        this.fulfilled = fulfilled;
+        this.value = value;
+        this.reason = reason;
+    }
+
+    public static <T> Outcome<T> fulfilled(T value) {
+        return new Outcome<>(true, value, null);
+    }
+
+    public static <T> Outcome<T> rejected(Throwable reason) {
+        return new Outcome<>(false, null, reason);
+    }
+
+    @Override
+    public String toString() {
+        return fulfilled ? "Outcome{value=" + value + "}" : "Outcome{reason=" + reason + "}";
+    }
+}
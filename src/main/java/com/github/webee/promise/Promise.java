@@ -3,21 +3,26 @@ package com.github.webee.promise;
 import com.github.webee.promise.functions.Action;
 import com.github.webee.promise.functions.Fulfillment;
 import com.github.webee.promise.functions.ThenFulfillment;
+import com.github.webee.promise.utils.HashedWheelTimer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Created by webee on 16/11/17.
  */
 
 public class Promise<T> {
-    enum State {
-        PENDING, FULFILLED, REJECTED
-    }
-
     static class NullStatus {
         static NullStatus instance = new NullStatus();
         private NullStatus() {
@@ -29,23 +34,70 @@ public class Promise<T> {
         }
     }
 
-    // promise state.
-    private State state = State.PENDING;
-    private boolean isWaiting = false;
+    // rejected result.
+    private static final class Rejection {
+        final Throwable reason;
+
+        Rejection(Throwable reason) {
+            this.reason = reason;
+        }
+    }
 
-    // promise data.
-    private T value;
-    private Object status = NullStatus.instance;
-    private Throwable reason;
+    // result of fulfilled with null.
+    private static final Object NIL = new Object();
+    // waiting for another promise.
+    private static final Object WAITING = new Object();
+    // being aborted, rejected once the upstream is released.
+    private static final Object ABORTING = new Object();
+    // handlers/listeners after settled.
+    private static final Callback CLOSED = new Callback() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final AtomicReferenceFieldUpdater<Promise, Object> RESULT =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "result");
+    private static final AtomicReferenceFieldUpdater<Promise, Callback> HANDLERS =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Callback.class, "handlers");
+    private static final AtomicReferenceFieldUpdater<Promise, Object> LISTENERS =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "listeners");
+    private static final AtomicReferenceFieldUpdater<Promise, Object> UPSTREAM =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "upstream");
+    private static final AtomicReferenceFieldUpdater<Promise.Stage, Object> RUNNER =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.Stage.class, Object.class, "runner");
+
+    // max callbacks run by one dispatched task when a promise settles or updates.
+    private static final int DISPATCH_CHUNK_SIZE =
+            Math.max(1, Integer.getInteger("com.github.webee.promise.dispatchChunkSize", 32));
+
+    // stage runner states while being interrupted by cancel.
+    private static final Object INTERRUPTING = new Object();
+    private static final Object INTERRUPTED = new Object();
+
+    // shared immutable settled promises.
+    private static final Promise<Object> NULL = new Promise<>(NIL, true);
+    private static final Promise<Boolean> TRUE = new Promise<>(Boolean.TRUE, true);
+    private static final Promise<Boolean> FALSE = new Promise<>(Boolean.FALSE, true);
+
+    // promise state and data: null(pending), WAITING, ABORTING, NIL/value(fulfilled) or Rejection(rejected).
+    private volatile Object result;
+    private volatile Object status = NullStatus.instance;
+    // shared constant promise, whose executors can't be changed.
+    private final boolean shared;
 
     // current handler/listener executor.
     private Executor executor;
     // current transformer executor.
     private Executor transformExecutor;
-    // settled handler callbacks.
-    private ConcurrentLinkedQueue<ExecutableRunnable> handlers = new ConcurrentLinkedQueue<>();
-    // status listener callbacks.
-    private ConcurrentLinkedQueue<ExecutableRunnable> listeners = new ConcurrentLinkedQueue<>();
+    // settled handler callbacks: null, a single handler or a lock-free stack of handlers, CLOSED once settled.
+    private volatile Callback handlers;
+    // status listener callbacks: null, a single listener or a copy on write array, CLOSED once settled.
+    private volatile Object listeners;
+    // the handlers on the upstream promises this promise depends on: null, a handler or an array of handlers, cleared once settled.
+    private volatile Object upstream;
+    // creation time for the settle latency, 0 if it's not counted by PromiseMetrics.
+    private final long createdAt;
 
     /**
      * 通过实现构造一个Promise
@@ -55,25 +107,11 @@ public class Promise<T> {
      */
     public Promise(Object s, Fulfillment<T> fulfill) {
         status = s;
+        shared = false;
+        createdAt = created();
 
         try {
-            fulfill.run(new Transition<T>() {
-                public void fulfill(T v) {
-                    Promise.this.fulfill(v);
-                }
-
-                public void fulfill(Promise<T> p) {
-                    Promise.this.fulfill(p);
-                }
-
-                public void reject(Throwable r) {
-                    Promise.this._reject(r);
-                }
-
-                public void update(Object s) {
-                    Promise.this.update(s);
-                }
-            });
+            fulfill.run(transition());
         } catch (Throwable r) {
             _reject(r);
         }
@@ -83,123 +121,364 @@ public class Promise<T> {
         this(NullStatus.instance, fulfill);
     }
 
+    /**
+     * 构造一个待实现的Promise, 由内部直接完成
+     *
+     * @param s 初始状态
+     */
+    Promise(Object s) {
+        status = s;
+        shared = false;
+        createdAt = created();
+    }
+
+    /**
+     * 构造一个已经settled的Promise
+     *
+     * @param r      结果
+     * @param shared 是否为共享的常量
+     */
+    private Promise(Object r, boolean shared) {
+        result = r;
+        handlers = CLOSED;
+        listeners = CLOSED;
+        this.shared = shared;
+        createdAt = 0;
+    }
+
+    private static long created() {
+        PromiseMetrics metrics = PromiseMetrics.installed;
+        if (metrics == null) {
+            return 0;
+        }
+        metrics.onCreated();
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+
+    Transition<T> transition() {
+        return new Transition<T>() {
+            public void fulfill(T v) {
+                Promise.this.fulfill(v);
+            }
+
+            public void fulfill(Promise<T> p) {
+                Promise.this.fulfill(p);
+            }
+
+            public void reject(Throwable r) {
+                Promise.this._reject(r);
+            }
+
+            public void update(Object s) {
+                Promise.this.update(s);
+            }
+        };
+    }
+
+    private boolean isSettled() {
+        Object r = result;
+        return r != null && r != WAITING && r != ABORTING;
+    }
+
+    /**
+     * 已经settled并且在syncExecutor上执行时, 直接执行回调, 不需要注册handler;
+     * 已经在trampoline中执行时则排队, 保持固定的栈深度. 返回true时必须调用Trampoline.exit()
+     */
+    private boolean enterInline(Executor executor) {
+        return executor == PromiseExecutors.syncExecutor() && isSettled() && Trampoline.enter();
+    }
+
+    private T value(Object r) {
+        return r == NIL ? null : (T) r;
+    }
+
+    /**
+     * 设置结果, 只有第一次设置成功
+     *
+     * @param r       结果
+     * @param waiting 是否只在waiting状态设置
+     * @return 是否设置成功
+     */
+    private boolean complete(Object r, boolean waiting) {
+        for (;;) {
+            Object cur = result;
+            if (cur != WAITING && (waiting || cur != null)) {
+                return false;
+            }
+            if (RESULT.compareAndSet(this, cur, r)) {
+                upstream = null;
+                settled();
+                return true;
+            }
+        }
+    }
+
     private void settled() {
-        for (ExecutableRunnable h : handlers) {
-            h.execute();
+        listeners = CLOSED;
+        if (createdAt != 0) {
+            PromiseMetrics metrics = PromiseMetrics.installed;
+            if (metrics != null) {
+                Object r = result;
+                metrics.onSettled(r instanceof Rejection ? ((Rejection) r).reason : null, System.nanoTime() - createdAt);
+            }
         }
 
-        handlers.clear();
-        listeners.clear();
+        Callback h = HANDLERS.getAndSet(this, CLOSED);
+        if (h == null) {
+            return;
+        }
+        if (h.next == null) {
+            h.execute();
+            return;
+        }
+        // collect without relinking: a concurrent detach may still be unlinking nodes from the stack.
+        Callback[] callbacks = new Callback[8];
+        int n = 0;
+        for (; h != null; h = h.next) {
+            if (h.detached) {
+                continue;
+            }
+            if (n == callbacks.length) {
+                callbacks = Arrays.copyOf(callbacks, n * 2);
+            }
+            callbacks[n++] = h;
+        }
+        // run in registration order.
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            Callback t = callbacks[i];
+            callbacks[i] = callbacks[j];
+            callbacks[j] = t;
+        }
+        if (n == 1) {
+            callbacks[0].execute();
+        } else if (n > 1) {
+            dispatch(n == callbacks.length ? callbacks : Arrays.copyOf(callbacks, n));
+        }
     }
 
     private void updated() {
-        for (ExecutableRunnable l : listeners) {
-            l.execute();
+        Object ls = listeners;
+        if (ls instanceof Callback[]) {
+            dispatch((Callback[]) ls);
+        } else if (ls != null && ls != CLOSED) {
+            ((Callback) ls).execute();
         }
     }
 
-    private synchronized <V> void listen(final Action<V> action, Executor executor) {
-        executor = executor != null ? executor : PromiseExecutors.defaultExecutor();
+    /**
+     * 按执行器分组提交回调, 每个执行器每DISPATCH_CHUNK_SIZE个回调提交一个任务, 组内保持注册顺序;
+     * 同步执行器上的回调仍然逐个执行
+     */
+    private static void dispatch(Callback[] callbacks) {
+        int n = callbacks.length;
+        // skipped or already grouped.
+        boolean[] grouped = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            grouped[i] = callbacks[i].detached || !callbacks[i].claim();
+        }
+        for (int i = 0; i < n; i++) {
+            if (grouped[i]) {
+                continue;
+            }
+            Executor executor = callbacks[i].executor;
+            if (executor == PromiseExecutors.syncExecutor()) {
+                Callback.submit(callbacks[i], executor);
+                continue;
+            }
+            int size = 0;
+            for (int j = i; j < n; j++) {
+                if (!grouped[j] && callbacks[j].executor == executor) {
+                    size++;
+                }
+            }
+            if (size == 1) {
+                Callback.submit(callbacks[i], executor);
+                continue;
+            }
+            Callback[] group = new Callback[size];
+            for (int j = i, k = 0; k < size; j++) {
+                if (!grouped[j] && callbacks[j].executor == executor) {
+                    grouped[j] = true;
+                    group[k++] = callbacks[j];
+                }
+            }
+            for (int from = 0; from < size; from += DISPATCH_CHUNK_SIZE) {
+                Callback.submit(new Batch(group, from, Math.min(from + DISPATCH_CHUNK_SIZE, size)), executor);
+            }
+        }
+    }
 
-        Runnable listener = new Runnable() {
-            @Override
-            public void run() {
-                action.run((V) status);
+    private <V> void listen(final Action<V> action, Executor executor, boolean conflate) {
+        Listener<V> listener = conflate ? new ConflatingListener<>(action) : new Listener<>(action);
+        listener.executor = executor != null ? executor : PromiseExecutors.defaultExecutor();
+
+        for (;;) {
+            Object ls = listeners;
+            Object nls;
+            if (ls == CLOSED) {
+                break;
+            } else if (ls == null) {
+                nls = listener;
+            } else if (ls instanceof Callback[]) {
+                Callback[] arr = (Callback[]) ls;
+                Callback[] narr = Arrays.copyOf(arr, arr.length + 1);
+                narr[arr.length] = listener;
+                nls = narr;
+            } else {
+                nls = new Callback[]{(Callback) ls, listener};
             }
-        };
+            if (LISTENERS.compareAndSet(this, ls, nls)) {
+                break;
+            }
+        }
 
         if (status != NullStatus.instance) {
-            executor.execute(listener);
+            listener.execute();
         }
+    }
 
-        if (state == State.PENDING) {
-            listeners.add(new ExecutableRunnable(listener, executor));
+    /**
+     * 注册handler, 已经settled则直接执行; 同包的桥接类(CompletionStages)也通过它在完成线程上直接得到结果
+     */
+    void handle(Handler handler, Executor executor) {
+        handler.executor = executor != null ? executor : PromiseExecutors.defaultExecutor();
+
+        for (;;) {
+            Callback head = handlers;
+            if (head == CLOSED) {
+                handler.execute();
+                return;
+            }
+            if (head != null && head.detached) {
+                HANDLERS.compareAndSet(this, head, head.next);
+                continue;
+            }
+            handler.next = head;
+            if (HANDLERS.compareAndSet(this, head, handler)) {
+                return;
+            }
         }
     }
 
-    private synchronized <V> void listen(Action<V> action) {
-        listen(action, PromiseExecutors.defaultExecutor());
+    /**
+     * 注册内部的handler, 在syncExecutor上执行: 管理这个Promise自身的资源(定时器, 输入等),
+     * 不算作依赖, 不阻止取消沿着上游传播
+     */
+    void handleInternal(Handler handler) {
+        handler.internal = true;
+        handle(handler, PromiseExecutors.syncExecutor());
     }
 
-    private synchronized void handle(Handler handler, Executor executor) {
-        executor = executor != null ? executor : PromiseExecutors.defaultExecutor();
+    /**
+     * 移除handler, 不会再被执行; 同时从栈中移除所有已经detached的handler, 长期pending的Promise不会积累它们
+     */
+    private void detach(Callback handler) {
+        handler.detached = true;
+        removeDetached();
+    }
 
-        if (state == State.PENDING) {
-            handlers.add(new ExecutableRunnable(handler, executor));
-        } else {
-            executor.execute(handler);
+    /**
+     * 先弹出栈顶的detached handler, 再跳过栈中的; 只修改detached节点前驱的next,
+     * 并发的清理或者settled的遍历最多多看到一些detached节点, 不会丢失未detached的节点
+     */
+    private void removeDetached() {
+        Callback p;
+        for (;;) {
+            p = handlers;
+            if (p == null || p == CLOSED) {
+                return;
+            }
+            if (!p.detached) {
+                break;
+            }
+            HANDLERS.compareAndSet(this, p, p.next);
+        }
+        Callback q = p.next;
+        while (q != null) {
+            Callback next = q.next;
+            if (q.detached) {
+                p.next = next;
+            } else {
+                p = q;
+            }
+            q = next;
         }
     }
 
-    private synchronized void _reject(Throwable r) {
-        if (state == State.PENDING) {
-            reason = r;
-            state = State.REJECTED;
-            settled();
+    /**
+     * 是否还有未移除的handler依赖这个Promise, 内部的handler不算
+     */
+    private boolean hasDependents() {
+        for (Callback h = handlers; h != null && h != CLOSED; h = h.next) {
+            if (!h.detached && !h.internal) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    private boolean _reject(Throwable r) {
+        return complete(new Rejection(r), false);
     }
 
     /**
      * waiting状态的reject
      */
-    private synchronized void _waiting_reject(Throwable r) {
-        if (state == State.PENDING && isWaiting) {
-            reason = r;
-            state = State.REJECTED;
-            isWaiting = false;
-            settled();
-        }
+    private void _waiting_reject(Throwable r) {
+        complete(new Rejection(r), true);
     }
 
-    private synchronized void update(Object s) {
-        if (state == State.PENDING) {
-            if (s != status) {
-                status = s;
-                updated();
-            }
+    private void update(Object s) {
+        if (!isSettled() && s != status) {
+            status = s;
+            updated();
         }
     }
 
-    private synchronized void fulfill(T v) {
-        if (state == State.PENDING) {
-            value = v;
-            state = State.FULFILLED;
-            settled();
-        }
+    private void fulfill(T v) {
+        complete(v == null ? NIL : v, false);
     }
 
     /**
      * waiting状态的fulfill
      */
-    private synchronized void waiting_fulfill(T v) {
-        if (state == State.PENDING && isWaiting) {
-            value = v;
-            state = State.FULFILLED;
-            isWaiting = false;
-            settled();
-        }
+    private void waiting_fulfill(T v) {
+        complete(v == null ? NIL : v, true);
     }
 
-    private synchronized void fulfill(Promise<T> p) {
-        if (state == State.PENDING && !isWaiting) {
+    private void fulfill(Promise<T> p) {
+        // 进入等待状态, 防止其它的fulfill(Promise)
+        if (RESULT.compareAndSet(this, null, WAITING)) {
             final Promise<T> hp = this;
-            // 进入等待状态, 防止其它的fulfill或者_reject
-            isWaiting = true;
             try {
                 p.status(PromiseExecutors.syncExecutor(), new Action<Object>() {
                     @Override
                     public void run(Object o) {
                         hp.update(o);
                     }
-                }).fulfilled(new Action<T>() {
-                    public void run(T v) {
+                });
+                // 在syncExecutor上接收结果, 嵌套的Promise通过trampoline迭代完成
+                Promise<T>.Handler handler = p.new Handler() {
+                    @Override
+                    void onFulfilled(T v) {
                         hp.waiting_fulfill(v);
                     }
-                }).rejected(new Action<Throwable>() {
-                    public void run(Throwable v) {
-                        hp._waiting_reject(v);
+
+                    @Override
+                    void onRejected(Throwable r) {
+                        hp._waiting_reject(r);
+                    }
+                };
+                upstream = handler;
+                // 进入WAITING之后的abort(例如在p.status同步执行的状态回调中取消)可能没有看到upstream, 由这里释放p
+                if (result != WAITING && UPSTREAM.compareAndSet(this, handler, null)) {
+                    if (!p.hasDependents()) {
+                        p.cancel();
                     }
-                });
+                    return;
+                }
+                p.handle(handler, PromiseExecutors.syncExecutor());
             } catch (Throwable r) {
                 _waiting_reject(r);
             }
@@ -213,9 +492,12 @@ public class Promise<T> {
      * @throws Throwable rejected原因,或者超时(AwaitTimeout)
      */
     private T await(boolean withTimeout, long timeout, TimeUnit unit) throws Throwable {
-        if (state == State.PENDING) {
+        if (!isSettled()) {
+            Trampoline.runQueued();
+        }
+        if (!isSettled()) {
             final CountDownLatch latch = new CountDownLatch(1);
-            settled(new Runnable() {
+            settled(PromiseExecutors.syncExecutor(), new Runnable() {
                 public void run() {
                     latch.countDown();
                 }
@@ -234,10 +516,11 @@ public class Promise<T> {
                 throw new AwaitTimeoutException(null);
             }
         }
-        if (state == State.FULFILLED) {
-            return value;
+        Object r = result;
+        if (r instanceof Rejection) {
+            throw ((Rejection) r).reason;
         }
-        throw reason;
+        return value(r);
     }
 
     public T await(long timeout, TimeUnit unit) throws Throwable {
@@ -249,23 +532,189 @@ public class Promise<T> {
     }
 
     /**
-     * 取消, 目前仅仅是reject为PromiseCanceledException, TODO: 尝试将执行线程取消
+     * 取消, reject为PromiseCanceledException, 下游的Promise也因此rejected;
+     * 上游的Promise没有其它依赖时也被取消
      *
      * @return 是否真的取消了
      */
     public boolean cancel() {
-        Throwable r = new PromiseCanceledException();
-        _reject(r);
-        return r == reason;
+        return cancel(false);
+    }
+
+    /**
+     * 取消, 同cancel()
+     *
+     * @param mayInterruptIfRunning 是否中断正在执行变换的线程
+     * @return 是否真的取消了
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return abort(new PromiseCanceledException(), mayInterruptIfRunning);
+    }
+
+    /**
+     * 以r reject, 并且释放上游: 上游的Promise没有其它依赖时被取消
+     */
+    private boolean abort(Throwable r, boolean mayInterruptIfRunning) {
+        // 先占住结果, 释放上游之后再reject, 观察到rejected时上游已经被取消
+        if (!claimAbort()) {
+            return false;
+        }
+        List<Promise<?>> released = release(this, mayInterruptIfRunning);
+        // 每一级都先占住再释放, 全部释放之后从最上游开始reject
+        if (released != null) {
+            for (int i = released.size() - 1; i >= 0; i--) {
+                released.get(i).settleAborted(new PromiseCanceledException());
+            }
+        }
+        settleAborted(r);
+        return true;
+    }
+
+    private boolean claimAbort() {
+        for (;;) {
+            Object cur = result;
+            if (cur != null && cur != WAITING) {
+                return false;
+            }
+            if (RESULT.compareAndSet(this, cur, ABORTING)) {
+                return true;
+            }
+        }
+    }
+
+    private void settleAborted(Throwable r) {
+        result = new Rejection(r);
+        settled();
+    }
+
+    /**
+     * 沿着上游迭代释放: 移除依赖的handler, 没有其它依赖并且未结束的上游被占住, 继续释放它的上游
+     *
+     * @param from 已经占住的Promise
+     * @return 被占住的上游, 下游在前, 没有则返回null
+     */
+    private static List<Promise<?>> release(Promise<?> from, boolean mayInterruptIfRunning) {
+        List<Promise<?>> released = null;
+        Promise<?> p = from;
+        for (int i = 0; ; i++) {
+            Object up = UPSTREAM.getAndSet(p, null);
+            if (up instanceof Promise.Handler[]) {
+                for (Promise<?>.Handler h : (Promise<?>.Handler[]) up) {
+                    if (h != null) {
+                        released = release(h, mayInterruptIfRunning, released);
+                    }
+                }
+            } else if (up != null) {
+                released = release((Promise<?>.Handler) up, mayInterruptIfRunning, released);
+            }
+            if (released == null || i == released.size()) {
+                return released;
+            }
+            p = released.get(i);
+        }
+    }
+
+    private static List<Promise<?>> release(Promise<?>.Handler h, boolean mayInterruptIfRunning, List<Promise<?>> released) {
+        if (mayInterruptIfRunning && h instanceof Promise.Stage) {
+            ((Promise<?>.Stage) h).interrupt();
+        }
+        Promise<?> source = h.source();
+        source.detach(h);
+        if (!source.hasDependents() && source.claimAbort()) {
+            if (released == null) {
+                released = new ArrayList<>();
+            }
+            released.add(source);
+        }
+        return released;
+    }
+
+    /**
+     * 超时控制, 在指定时间内没有结束则reject为AwaitTimeoutException, 不阻塞;
+     * 超时后上游的Promise没有其它依赖时被取消
+     *
+     * @param time 超时时间
+     * @param unit 时间单位
+     * @return 生成的Promise
+     */
+    public Promise<T> timeout(long time, TimeUnit unit) {
+        final Promise<T> p = new Promise<>(NullStatus.instance);
+        final HashedWheelTimer.Timeout timeout = PromiseExecutors.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                p.abort(new AwaitTimeoutException(null), false);
+            }
+        }, time, unit);
+        p.handleInternal(p.new Handler() {
+            @Override
+            void onSettled() {
+                timeout.cancel();
+            }
+        });
+
+        Handler handler = new Handler() {
+            @Override
+            void onFulfilled(T v) {
+                p.fulfill(v);
+            }
+
+            @Override
+            void onRejected(Throwable r) {
+                p._reject(r);
+            }
+        };
+        p.upstream = handler;
+        handle(handler, PromiseExecutors.syncExecutor());
+        return p;
+    }
+
+    /**
+     * 延时fulfill, fulfilled之后延时指定时间再fulfill相同的值, rejected则立即reject;
+     * 生成的Promise被取消(包括由下游的取消传播)时同时取消定时
+     *
+     * @param time 延时
+     * @param unit 时间单位
+     * @return 生成的Promise
+     */
+    public Promise<T> delayed(final long time, final TimeUnit unit) {
+        final Promise<T> p = new Promise<>(NullStatus.instance);
+        Handler handler = new Handler() {
+            @Override
+            void onFulfilled(final T v) {
+                final HashedWheelTimer.Timeout timeout = PromiseExecutors.timer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        p.fulfill(v);
+                    }
+                }, time, unit);
+                p.handleInternal(p.new Handler() {
+                    @Override
+                    void onSettled() {
+                        timeout.cancel();
+                    }
+                });
+            }
+
+            @Override
+            void onRejected(Throwable r) {
+                p._reject(r);
+            }
+        };
+        p.upstream = handler;
+        handle(handler, PromiseExecutors.syncExecutor());
+        return p;
     }
 
     /**
-     * 指定处理执行器
+     * 指定处理执行器, 共享的常量Promise(如resolve(null))则返回一个新的Promise
      *
      * @param executor 执行器
      * @return 当前Promise
      */
     public Promise<T> handleOn(Executor executor) {
+        if (shared) {
+            return new Promise<T>(result, false).handleOn(executor);
+        }
         this.executor = executor;
         return this;
     }
@@ -279,14 +728,31 @@ public class Promise<T> {
      * @return 当前Promise
      */
     public <V> Promise<T> status(Executor executor, final Action<V> onUpdate) {
-        listen(onUpdate, executor);
-        return this;
+        return status(executor, onUpdate, false);
     }
 
     public <V> Promise<T> status(Action<V> onUpdate) {
         return status(executor, onUpdate);
     }
 
+    /**
+     * 处理计算状态更新
+     *
+     * @param executor 执行器
+     * @param onUpdate 状态更新回调
+     * @param conflate 是否合并: 每个回调最多只有一个待执行的任务, 执行时取最新的状态, 中间的状态可能被跳过
+     * @param <V>      状态值类型
+     * @return 当前Promise
+     */
+    public <V> Promise<T> status(Executor executor, final Action<V> onUpdate, boolean conflate) {
+        listen(onUpdate, executor, conflate);
+        return this;
+    }
+
+    public <V> Promise<T> status(Action<V> onUpdate, boolean conflate) {
+        return status(executor, onUpdate, conflate);
+    }
+
     /**
      * 处理计算成功
      *
@@ -295,6 +761,17 @@ public class Promise<T> {
      * @return 当前Promise
      */
     public Promise<T> fulfilled(Executor executor, final Action<T> onFulfilled) {
+        if (enterInline(executor)) {
+            try {
+                Object r = result;
+                if (!(r instanceof Rejection)) {
+                    onFulfilled.run(value(r));
+                }
+                return this;
+            } finally {
+                Trampoline.exit();
+            }
+        }
         handle(new Handler() {
             @Override
             public void onFulfilled(T v) {
@@ -316,6 +793,16 @@ public class Promise<T> {
      * @return 当前Promise
      */
     public Promise<T> fulfilled(Executor executor, final Runnable action) {
+        if (enterInline(executor)) {
+            try {
+                if (!(result instanceof Rejection)) {
+                    action.run();
+                }
+                return this;
+            } finally {
+                Trampoline.exit();
+            }
+        }
         handle(new Handler() {
             @Override
             public void onFulfilled(T _) {
@@ -338,6 +825,17 @@ public class Promise<T> {
      * @return 当前Promise
      */
     public Promise<T> rejected(Executor executor, final Action<Throwable> onRejected) {
+        if (enterInline(executor)) {
+            try {
+                Object r = result;
+                if (r instanceof Rejection) {
+                    onRejected.run(((Rejection) r).reason);
+                }
+                return this;
+            } finally {
+                Trampoline.exit();
+            }
+        }
         handle(new Handler() {
             @Override
             void onRejected(Throwable r) {
@@ -359,6 +857,14 @@ public class Promise<T> {
      * @return 当前Promise
      */
     public Promise<T> settled(Executor executor, final Runnable onSettled) {
+        if (enterInline(executor)) {
+            try {
+                onSettled.run();
+                return this;
+            } finally {
+                Trampoline.exit();
+            }
+        }
         handle(new Handler() {
             @Override
             void onSettled() {
@@ -373,20 +879,24 @@ public class Promise<T> {
     }
 
 
-    private static <T> void doFulfill(Transition<T> transition, T v) {
+    private void fulfillWith(Object v) {
         if (v instanceof Promise) {
-            transition.fulfill((Promise<T>) v);
+            fulfill((Promise<T>) v);
         } else {
-            transition.fulfill(v);
+            fulfill((T) v);
         }
     }
+
     /**
-     * 指定转换执行器
+     * 指定转换执行器, 共享的常量Promise(如resolve(null))则返回一个新的Promise
      *
      * @param executor 执行器
      * @return 当前Promise
      */
     public Promise<T> transformOn(Executor executor) {
+        if (shared) {
+            return new Promise<T>(result, false).transformOn(executor);
+        }
         this.transformExecutor = executor;
         return this;
     }
@@ -399,27 +909,42 @@ public class Promise<T> {
      * @return 变换后Promise
      */
     public Promise<T> thenCatch(final Executor executor, final CatchTransform<T> catchTransform) {
-        return new Promise<>(new Fulfillment<T>() {
+        if (enterInline(executor)) {
+            try {
+                Object r = result;
+                if (!(r instanceof Rejection)) {
+                    return new Promise<>(r, false);
+                }
+                return resolve(catchTransform.run(((Rejection) r).reason));
+            } catch (Throwable e) {
+                return reject(e);
+            } finally {
+                Trampoline.exit();
+            }
+        }
+        final Promise<T> p = new Promise<>(NullStatus.instance);
+        Stage stage = new Stage() {
             @Override
-            public void run(final Transition<T> transition) {
-                handle(new Handler() {
-                    @Override
-                    public void onFulfilled(T v) {
-                        doFulfill(transition, v);
-                    }
+            public void onFulfilled(T v) {
+                p.fulfillWith(v);
+            }
 
-                    @Override
-                    public void onRejected(Throwable r) {
-                        try {
-                            T v = catchTransform.run(r);
-                            doFulfill(transition, v);
-                        } catch (Throwable e) {
-                            transition.reject(e);
-                        }
+            @Override
+            public void onRejected(Throwable r) {
+                if (begin(p)) {
+                    try {
+                        p.fulfillWith(catchTransform.run(r));
+                    } catch (Throwable e) {
+                        p._reject(e);
+                    } finally {
+                        end();
                     }
-                }, executor);
+                }
             }
-        });
+        };
+        p.upstream = stage;
+        handle(stage, executor);
+        return p;
     }
 
     public Promise<T> thenCatch(final CatchTransform<T> catchTransform) {
@@ -469,26 +994,30 @@ public class Promise<T> {
      * @return 变换后Promise
      */
     public <V> Promise<V> then(final Executor executor, Object s, final ThenFulfillment<T, V>thenFulfillment) {
-        return then(executor, s, new Fulfillment<V>() {
+        final Promise<V> p = new Promise<>(s);
+        final Transition<V> transition = p.transition();
+        Stage stage = new Stage() {
             @Override
-            public void run(final Transition<V> transition) {
-                handle(new Handler() {
-                    @Override
-                    public void onFulfilled(T v) {
-                        try {
-                            thenFulfillment.run(v, transition);
-                        } catch (Throwable e) {
-                            transition.reject(e);
-                        }
+            public void onFulfilled(T v) {
+                if (begin(p)) {
+                    try {
+                        thenFulfillment.run(v, transition);
+                    } catch (Throwable e) {
+                        p._reject(e);
+                    } finally {
+                        end();
                     }
+                }
+            }
 
-                    @Override
-                    public void onRejected(Throwable r) {
-                        transition.reject(r);
-                    }
-                }, executor);
+            @Override
+            public void onRejected(Throwable r) {
+                p._reject(r);
             }
-        });
+        };
+        p.upstream = stage;
+        handle(stage, executor);
+        return p;
     }
 
     public <V> Promise<V> then(Object s, final ThenFulfillment<T, V>thenFulfillment) {
@@ -512,16 +1041,42 @@ public class Promise<T> {
      * @return 变换后Promise
      */
     public <V> Promise<V> then(final Executor executor, final Transform<T, V> transform) {
-        return then(executor, new ThenFulfillment<T, V>() {
-            @Override
-            public void run(T v, Transition<V> transition) {
-                try {
-                    doFulfill(transition, transform.run(v));
-                } catch (Throwable e) {
-                    transition.reject(e);
+        if (enterInline(executor)) {
+            try {
+                Object r = result;
+                if (r instanceof Rejection) {
+                    return new Promise<>(r, false);
                 }
+                return resolve(transform.run(value(r)));
+            } catch (Throwable e) {
+                return reject(e);
+            } finally {
+                Trampoline.exit();
             }
-        });
+        }
+        final Promise<V> p = new Promise<>(NullStatus.instance);
+        Stage stage = new Stage() {
+            @Override
+            public void onFulfilled(T v) {
+                if (begin(p)) {
+                    try {
+                        p.fulfillWith(transform.run(v));
+                    } catch (Throwable e) {
+                        p._reject(e);
+                    } finally {
+                        end();
+                    }
+                }
+            }
+
+            @Override
+            public void onRejected(Throwable r) {
+                p._reject(r);
+            }
+        };
+        p.upstream = stage;
+        handle(stage, executor);
+        return p;
     }
 
     public <V> Promise<V> then(final Transform<T, V> transform) {
@@ -580,7 +1135,100 @@ public class Promise<T> {
         return then(transformExecutor, action);
     }
 
-    abstract class Handler implements Runnable {
+    abstract static class Callback implements Runnable {
+        Executor executor;
+        // next handler in the handlers stack.
+        volatile Callback next;
+        // detached handlers are skipped.
+        volatile boolean detached;
+        // internal handlers manage the promise itself, they are not dependents.
+        boolean internal;
+
+        void execute() {
+            if (!detached && claim()) {
+                submit(this, executor);
+            }
+        }
+
+        /**
+         * 提交之前调用
+         *
+         * @return 是否需要提交
+         */
+        boolean claim() {
+            return true;
+        }
+
+        static void submit(Runnable task, Executor executor) {
+            PromiseMetrics metrics = PromiseMetrics.installed;
+            if (metrics != null) {
+                task = new TimedTask(task, executor, metrics);
+            }
+            if (executor instanceof ElidableExecutor && Elision.runInline(task, (ElidableExecutor) executor)) {
+                return;
+            }
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * 安装了PromiseMetrics时包装提交的回调任务, 记录排队和执行时间
+     */
+    private static final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final Executor executor;
+        private final PromiseMetrics metrics;
+        private final long submittedAt = System.nanoTime();
+
+        TimedTask(Runnable task, Executor executor, PromiseMetrics metrics) {
+            this.task = task;
+            this.executor = executor;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                metrics.onTaskRun(executor, start - submittedAt, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * 在同一个任务中依次执行一组回调, 一个回调的异常不影响其它回调
+     */
+    private static final class Batch implements Runnable {
+        private final Callback[] callbacks;
+        private final int from;
+        private final int to;
+
+        Batch(Callback[] callbacks, int from, int to) {
+            this.callbacks = callbacks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            for (int i = from; i < to; i++) {
+                Callback callback = callbacks[i];
+                if (callback.detached) {
+                    continue;
+                }
+                try {
+                    callback.run();
+                } catch (Throwable e) {
+                    Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, e);
+                }
+            }
+        }
+    }
+
+    abstract class Handler extends Callback {
         void onFulfilled(T v) {
         }
 
@@ -592,31 +1240,112 @@ public class Promise<T> {
 
         @Override
         public void run() {
-            if (state == State.FULFILLED) {
-                onFulfilled(value);
-            } else if (state == State.REJECTED) {
-                onRejected(reason);
+            Object r = result;
+            if (r instanceof Rejection) {
+                onRejected(((Rejection) r).reason);
+            } else {
+                onFulfilled(r == NIL ? null : (T) r);
             }
             onSettled();
         }
+
+        Promise<T> source() {
+            return Promise.this;
+        }
     }
 
-    private class ExecutableRunnable {
-        private Executor executor;
-        private Runnable runnable;
+    /**
+     * 生成下游Promise的handler, 记录执行变换的线程, 以便取消时中断
+     */
+    abstract class Stage extends Handler {
+        // null, the running thread, INTERRUPTING or INTERRUPTED.
+        volatile Object runner;
+
+        /**
+         * 开始执行变换
+         *
+         * @param downstream 下游Promise
+         * @return 下游Promise已经结束(被取消)则返回false, 不需要执行变换
+         */
+        boolean begin(Promise<?> downstream) {
+            if (downstream.isSettled() || !RUNNER.compareAndSet(this, null, Thread.currentThread())) {
+                return false;
+            }
+            if (downstream.isSettled()) {
+                end();
+                return false;
+            }
+            return true;
+        }
 
-        ExecutableRunnable(Runnable runnable, Executor executor) {
-            this.executor = executor;
-            this.runnable = runnable;
+        void end() {
+            if (!RUNNER.compareAndSet(this, Thread.currentThread(), null)) {
+                // 等待中断完成, 并清除中断状态, 避免影响执行器的后续任务
+                while (runner == INTERRUPTING) {
+                    Thread.yield();
+                }
+                Thread.interrupted();
+            }
         }
 
-        void execute() {
-            executor.execute(runnable);
+        void interrupt() {
+            Object r = runner;
+            if (r instanceof Thread && RUNNER.compareAndSet(this, r, INTERRUPTING)) {
+                try {
+                    ((Thread) r).interrupt();
+                } finally {
+                    runner = INTERRUPTED;
+                }
+            }
+        }
+    }
+
+    private class Listener<V> extends Callback {
+        private final Action<V> action;
+        // 最近分发的状态, 注册和并发的update可能同时分发同一状态
+        private final AtomicReference<Object> dispatched = new AtomicReference<>();
+
+        Listener(Action<V> action) {
+            this.action = action;
+        }
+
+        @Override
+        boolean claim() {
+            Object s = status;
+            return dispatched.getAndSet(s) != s;
+        }
+
+        @Override
+        public void run() {
+            action.run((V) status);
         }
     }
 
     /**
-     * 生成一个顺序执行一系列动作的空Promise作为后续处理的起点
+     * 最多只有一个待执行任务的Listener, 执行时取最新的状态
+     */
+    private class ConflatingListener<V> extends Listener<V> {
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        ConflatingListener(Action<V> action) {
+            super(action);
+        }
+
+        @Override
+        boolean claim() {
+            return pending.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            // 先清除再读取状态, 之后的更新会再次提交
+            pending.set(false);
+            super.run();
+        }
+    }
+
+    /**
+     * 生成一个顺序执行一系列动作的空Promise作为后续处理的起点, 没有动作时返回共享的常量Promise
      * @return
      */
     public static Promise<Void> create(Runnable ...actions) {
@@ -628,19 +1357,47 @@ public class Promise<T> {
     }
 
     /**
-     * 生成一个fulfilled值为v的Promise
+     * 生成一个在指定时间之后fulfilled的Promise, 由共享的定时器完成, 不占用线程; 取消时同时取消定时
      *
-     * @param v   值
-     * @param <V> 值类型
+     * @param time 延时
+     * @param unit 时间单位
      * @return 生成的Promise
      */
-    public static <V> Promise<V> resolve(final V v) {
-        return new Promise<>(new Fulfillment<V>() {
+    public static Promise<Void> delay(long time, TimeUnit unit) {
+        final Promise<Void> p = new Promise<>(NullStatus.instance);
+        final HashedWheelTimer.Timeout timeout = PromiseExecutors.timer().schedule(new Runnable() {
             @Override
-            public void run(Transition<V> transition) {
-                doFulfill(transition, v);
+            public void run() {
+                p.fulfill((Void) null);
+            }
+        }, time, unit);
+        p.handleInternal(p.new Handler() {
+            @Override
+            void onRejected(Throwable r) {
+                timeout.cancel();
             }
         });
+        return p;
+    }
+
+    /**
+     * 生成一个fulfilled值为v的Promise, null和Boolean值返回共享的常量Promise
+     *
+     * @param v   值
+     * @param <V> 值类型
+     * @return 生成的Promise
+     */
+    public static <V> Promise<V> resolve(final V v) {
+        if (v == null) {
+            return (Promise<V>) NULL;
+        } else if (v instanceof Boolean) {
+            return (Promise<V>) ((Boolean) v ? TRUE : FALSE);
+        } else if (v instanceof Promise) {
+            Promise<V> p = new Promise<>(NullStatus.instance);
+            p.fulfill((Promise<V>) v);
+            return p;
+        }
+        return new Promise<>(v, false);
     }
 
     /**
@@ -662,12 +1419,7 @@ public class Promise<T> {
      * @return 生成的Promise
      */
     public static <V> Promise<V> reject(final Throwable r) {
-        return new Promise<>(new Fulfillment<V>() {
-            @Override
-            public void run(Transition<V> transition) {
-                transition.reject(r);
-            }
-        });
+        return new Promise<>(new Rejection(r), false);
     }
 
     /**
@@ -680,52 +1432,72 @@ public class Promise<T> {
      * @return 生成的Promise
      */
     public static <T> Promise<Iterable<T>> all(final Iterable<Promise<T>> promises, final boolean allowReject, final T rejectedValue) {
-        return new Promise<>(new Fulfillment<Iterable<T>>() {
-            @Override
-            public void run(final Transition<Iterable<T>> transition) {
-                PromiseExecutors.defaultExecutor().execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        int count = 0;
-                        for (Promise<T> _ : promises) {
-                            count++;
-                        }
+        return all(collect(promises), allowReject, rejectedValue);
+    }
 
-                        final CountDownLatch latch = new CountDownLatch(count);
-                        final List<T> res = new ArrayList<>(count);
-                        int idx = 0;
-                        for (Promise<T> promise : promises) {
-                            final int index = idx++;
-                            res.add(null);
-                            promise.fulfilled(new Action<T>() {
-                                @Override
-                                public void run(T v) {
-                                    res.set(index, v);
-                                    latch.countDown();
-                                }
-                            }).rejected(new Action<Throwable>() {
-                                @Override
-                                public void run(Throwable r) {
-                                    if (allowReject) {
-                                        res.set(index, rejectedValue);
-                                    } else {
-                                        transition.reject(r);
-                                    }
-                                    latch.countDown();
-                                }
-                            });
-                        }
+    private static <T> Collection<Promise<T>> collect(Iterable<Promise<T>> promises) {
+        if (promises instanceof Collection) {
+            return (Collection<Promise<T>>) promises;
+        }
+        List<Promise<T>> list = new ArrayList<>();
+        for (Promise<T> promise : promises) {
+            list.add(promise);
+        }
+        return list;
+    }
 
-                        try {
-                            latch.await();
-                            transition.fulfill(res);
-                        } catch (InterruptedException e) {
-                            transition.reject(e);
-                        }
+    /**
+     * 利用所有Promise的值生成一个集合值类型的Promise, 不占用线程等待, 由最后一个结束的Promise完成;
+     * 生成的Promise被取消时, 没有其它依赖的输入也被取消
+     *
+     * @param promises      源Promises
+     * @param allowReject   是否允许reject
+     * @param rejectedValue 如果允许reject则reject之后fulfill的值
+     * @param <T>           值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<Iterable<T>> all(final Collection<Promise<T>> promises, final boolean allowReject, final T rejectedValue) {
+        final int count = promises.size();
+        final Object[] res = new Object[count];
+        if (count == 0) {
+            return resolve((Iterable<T>) Arrays.asList((T[]) res));
+        }
+
+        final Promise<Iterable<T>> p = new Promise<>(NullStatus.instance);
+        final AtomicInteger remaining = new AtomicInteger(count);
+        // 取消时释放所有输入
+        Promise.Handler[] handlers = new Promise.Handler[count];
+        p.upstream = handlers;
+        int idx = 0;
+        for (Promise<T> promise : promises) {
+            final int index = idx++;
+            Promise<T>.Handler handler = promise.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    res[index] = v;
+                    arrive();
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    if (allowReject) {
+                        res[index] = rejectedValue;
+                        arrive();
+                    } else {
+                        p._reject(r);
                     }
-                });
-            }
-        });
+                }
+
+                private void arrive() {
+                    if (remaining.decrementAndGet() == 0) {
+                        p.fulfill((Iterable<T>) Arrays.asList((T[]) res));
+                    }
+                }
+            };
+            handlers[index] = handler;
+            promise.handle(handler, PromiseExecutors.syncExecutor());
+        }
+        return p;
     }
 
     public static <T> Promise<Iterable<T>> all(final Iterable<Promise<T>> promises) {
@@ -744,6 +1516,78 @@ public class Promise<T> {
         return all(rejectedValue, Arrays.asList(promises));
     }
 
+    /**
+     * 同all, 但是任何一个Promise rejected(或者生成的Promise被取消)时立即取消其它未结束的Promise
+     *
+     * @param promises 源Promises
+     * @param <T>      值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<Iterable<T>> allFailFast(Iterable<Promise<T>> promises) {
+        Collection<Promise<T>> inputs = collect(promises);
+        final Promise[] siblings = inputs.toArray(new Promise[inputs.size()]);
+        Promise<Iterable<T>> p = all(inputs, false, null);
+        p.handleInternal(p.new Handler() {
+            @Override
+            void onRejected(Throwable r) {
+                for (Promise sibling : siblings) {
+                    sibling.cancel();
+                }
+            }
+        });
+        return p;
+    }
+
+    public static <T> Promise<Iterable<T>> allFailFast(Promise<T>... promises) {
+        return allFailFast(Arrays.asList(promises));
+    }
+
+    /**
+     * 等待所有Promise结束, 生成每个Promise的结果, 从不rejected
+     *
+     * @param promises 源Promises
+     * @param <T>      值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<Iterable<Outcome<T>>> allSettled(Iterable<Promise<T>> promises) {
+        Collection<Promise<T>> inputs = collect(promises);
+        final int count = inputs.size();
+        final Outcome[] res = new Outcome[count];
+        if (count == 0) {
+            return resolve((Iterable<Outcome<T>>) Arrays.asList((Outcome<T>[]) res));
+        }
+
+        final Promise<Iterable<Outcome<T>>> p = new Promise<>(NullStatus.instance);
+        final AtomicInteger remaining = new AtomicInteger(count);
+        int idx = 0;
+        for (Promise<T> promise : inputs) {
+            final int index = idx++;
+            promise.handle(promise.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    res[index] = Outcome.fulfilled(v);
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    res[index] = Outcome.rejected(r);
+                }
+
+                @Override
+                void onSettled() {
+                    if (remaining.decrementAndGet() == 0) {
+                        p.fulfill((Iterable<Outcome<T>>) Arrays.asList((Outcome<T>[]) res));
+                    }
+                }
+            }, PromiseExecutors.syncExecutor());
+        }
+        return p;
+    }
+
+    public static <T> Promise<Iterable<Outcome<T>>> allSettled(Promise<T>... promises) {
+        return allSettled(Arrays.asList(promises));
+    }
+
     /**
      * 以最快结束的Promise fulfill一个Promise
      *
@@ -752,27 +1596,465 @@ public class Promise<T> {
      * @return 生成的Promise
      */
     public static <T> Promise<T> race(final Iterable<Promise<T>> promises) {
-        return new Promise<>(new Fulfillment<T>() {
+        return race(promises, false);
+    }
+
+    public static <T> Promise<T> race(Promise<T>... promises) {
+        return race(Arrays.asList(promises));
+    }
+
+    /**
+     * 以最快结束的Promise fulfill一个Promise, 结束后从其它Promise上移除回调;
+     * 生成的Promise(或者它的下游)被取消时, 没有其它依赖的输入也被取消
+     *
+     * @param promises     源Promises
+     * @param cancelLosers 是否取消其它未结束的Promise
+     * @param <T>          值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<T> race(Iterable<Promise<T>> promises, boolean cancelLosers) {
+        final Promise<T>[] sources = toArray(promises);
+        final Promise.Handler[] handlers = new Promise.Handler[sources.length];
+        final Promise<T> p = new Promise<>(NullStatus.instance);
+        p.upstream = handlers;
+        for (int i = 0; i < sources.length; i++) {
+            Promise<T> source = sources[i];
+            Promise<T>.Handler handler = source.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    p.fulfill(v);
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    p._reject(r);
+                }
+            };
+            handlers[i] = handler;
+            source.handle(handler, PromiseExecutors.syncExecutor());
+        }
+        releaseLosers(p, sources, handlers, cancelLosers);
+        return p;
+    }
+
+    /**
+     * 以最快fulfilled的Promise fulfill一个Promise, 全部rejected时以AggregateException reject
+     *
+     * @param promises 源Promises
+     * @param <T>      值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<T> any(Iterable<Promise<T>> promises) {
+        return any(promises, false);
+    }
+
+    public static <T> Promise<T> any(Promise<T>... promises) {
+        return any(Arrays.asList(promises));
+    }
+
+    public static <T> Promise<T> any(Iterable<Promise<T>> promises, boolean cancelLosers) {
+        return some(1, promises, cancelLosers).then(PromiseExecutors.syncExecutor(), new Transform<Iterable<T>, T>() {
             @Override
-            public void run(final Transition<T> transition) {
-                for (Promise<T> promise : promises) {
-                    promise.fulfilled(new Action<T>() {
-                        @Override
-                        public void run(T v) {
-                            transition.fulfill(v);
+            public T run(Iterable<T> vs) {
+                return vs.iterator().next();
+            }
+        });
+    }
+
+    /**
+     * 以最快fulfilled的n个Promise的值(按完成顺序) fulfill一个Promise,
+     * 不可能有n个fulfilled时以AggregateException reject
+     *
+     * @param n        需要的个数
+     * @param promises 源Promises
+     * @param <T>      值类型
+     * @return 生成的Promise
+     */
+    public static <T> Promise<Iterable<T>> some(int n, Iterable<Promise<T>> promises) {
+        return some(n, promises, false);
+    }
+
+    public static <T> Promise<Iterable<T>> some(int n, Promise<T>... promises) {
+        return some(n, Arrays.asList(promises));
+    }
+
+    public static <T> Promise<Iterable<T>> some(final int n, Iterable<Promise<T>> promises, boolean cancelLosers) {
+        final Promise<T>[] sources = toArray(promises);
+        final int count = sources.length;
+        final Object[] values = new Object[Math.max(n, 0)];
+        if (n <= 0) {
+            return resolve((Iterable<T>) Arrays.asList((T[]) values));
+        } else if (count < n) {
+            return reject(new AggregateException(new ArrayList<Throwable>()));
+        }
+
+        // 超过这个数目的rejected则不可能有n个fulfilled
+        final int maxRejected = count - n + 1;
+        final Throwable[] reasons = new Throwable[maxRejected];
+        final AtomicInteger fulfilledSlots = new AtomicInteger();
+        final AtomicInteger fulfilledCount = new AtomicInteger();
+        final AtomicInteger rejectedSlots = new AtomicInteger();
+        final AtomicInteger rejectedCount = new AtomicInteger();
+        final Promise.Handler[] handlers = new Promise.Handler[count];
+        final Promise<Iterable<T>> p = new Promise<>(NullStatus.instance);
+        p.upstream = handlers;
+        for (int i = 0; i < count; i++) {
+            Promise<T> source = sources[i];
+            Promise<T>.Handler handler = source.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    int slot = fulfilledSlots.getAndIncrement();
+                    if (slot < n) {
+                        values[slot] = v;
+                        if (fulfilledCount.incrementAndGet() == n) {
+                            p.fulfill((Iterable<T>) Arrays.asList((T[]) values));
                         }
-                    }).rejected(new Action<Throwable>() {
-                        @Override
-                        public void run(Throwable r) {
-                            transition.reject(r);
+                    }
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    int slot = rejectedSlots.getAndIncrement();
+                    if (slot < maxRejected) {
+                        reasons[slot] = r;
+                        if (rejectedCount.incrementAndGet() == maxRejected) {
+                            p._reject(new AggregateException(Arrays.asList(reasons)));
                         }
-                    });
+                    }
+                }
+            };
+            handlers[i] = handler;
+            source.handle(handler, PromiseExecutors.syncExecutor());
+        }
+        releaseLosers(p, sources, handlers, cancelLosers);
+        return p;
+    }
+
+    /**
+     * 对每个输入执行异步变换, 按需读取输入, 同时最多执行concurrency个;
+     * 任何一个变换失败时reject并且取消执行中的变换, 生成的Promise被取消时也取消执行中的变换
+     *
+     * @param inputs      输入
+     * @param transform   异步变换
+     * @param concurrency 最大并发数
+     * @param <S>         输入类型
+     * @param <V>         值类型
+     * @return 按输入顺序的所有值
+     */
+    public static <S, V> Promise<Iterable<V>> map(Iterable<S> inputs, PromiseTransform<S, V> transform, int concurrency) {
+        final List<Object> values = new ArrayList<>();
+        Mapper<S, V> mapper = new Mapper<S, V>(inputs, transform, concurrency) {
+            @Override
+            void onStart(int index) {
+                synchronized (values) {
+                    values.add(null);
+                }
+            }
+
+            @Override
+            void onValue(int index, V v) {
+                synchronized (values) {
+                    values.set(index, v);
                 }
             }
+        };
+        return mapper.run().then(PromiseExecutors.syncExecutor(), new Transform<Void, Iterable<V>>() {
+            @Override
+            public Iterable<V> run(Void v) {
+                return (Iterable<V>) values;
+            }
         });
     }
 
-    public static <T> Promise<T> race(Promise<T>... promises) {
-        return race(Arrays.asList(promises));
+    public static <S, V> Promise<Void> each(Iterable<S> inputs, PromiseTransform<S, V> transform, int concurrency) {
+        return each(inputs, transform, concurrency, null);
+    }
+
+    /**
+     * 同map, 但是不保存值, 按完成顺序依次(不会并发)交给onValue
+     *
+     * @param inputs      输入
+     * @param transform   异步变换
+     * @param concurrency 最大并发数
+     * @param onValue     值回调, 可以为null
+     * @param <S>         输入类型
+     * @param <V>         值类型
+     * @return 所有变换完成时fulfilled的Promise
+     */
+    public static <S, V> Promise<Void> each(Iterable<S> inputs, PromiseTransform<S, V> transform, int concurrency,
+                                             final Action<V> onValue) {
+        return new Mapper<S, V>(inputs, transform, concurrency) {
+            @Override
+            synchronized void onValue(int index, V v) {
+                if (onValue != null) {
+                    onValue.run(v);
+                }
+            }
+        }.run();
+    }
+
+    /**
+     * 执行action, rejected时按照策略在共享的定时器上延时重试, 不占用线程等待, 重试在默认执行器上调用action;
+     * 取消生成的Promise时取消正在进行的尝试和等待中的重试.
+     * 超过总时限, 或者下一次重试的延时会超过总时限时, reject为AwaitTimeoutException, cause为最后一个尝试的rejected原因(如果有)
+     *
+     * @param action 每次尝试调用, 生成一个Promise
+     * @param policy 重试策略
+     * @param <T>    值类型
+     * @return 第一个fulfilled的尝试的值, 或者最后一个尝试的rejected原因, 或者超时
+     */
+    public static <T> Promise<T> retry(Callable<Promise<T>> action, RetryPolicy policy) {
+        return new Retrier<>(action, policy).run();
+    }
+
+    private static final class Retrier<T> {
+        private final Callable<Promise<T>> action;
+        private final RetryPolicy policy;
+        private final RetryStats stats;
+        private final Promise<T> p = new Promise<>(NullStatus.instance);
+        private final long start = System.nanoTime();
+        // the running attempt or the scheduled retry, canceled with p.
+        private volatile Promise<T> current;
+        private volatile HashedWheelTimer.Timeout pending;
+
+        Retrier(Callable<Promise<T>> action, RetryPolicy policy) {
+            this.action = action;
+            this.policy = policy;
+            this.stats = policy.getStats();
+        }
+
+        Promise<T> run() {
+            stats.onCall();
+            final HashedWheelTimer.Timeout deadline = policy.getDeadlineNanos() <= 0 ? null
+                    : PromiseExecutors.timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    p.abort(new AwaitTimeoutException(null), false);
+                }
+            }, policy.getDeadlineNanos(), TimeUnit.NANOSECONDS);
+            p.handleInternal(p.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    stats.onCallEnd(true, System.nanoTime() - start);
+                    if (deadline != null) {
+                        deadline.cancel();
+                    }
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    stats.onCallEnd(false, System.nanoTime() - start);
+                    if (deadline != null) {
+                        deadline.cancel();
+                    }
+                    HashedWheelTimer.Timeout t = pending;
+                    if (t != null) {
+                        t.cancel();
+                    }
+                    Promise<T> q = current;
+                    if (q != null) {
+                        q.cancel();
+                    }
+                }
+            });
+            attempt(1);
+            return p;
+        }
+
+        private void attempt(final int n) {
+            if (p.isSettled()) {
+                return;
+            }
+            stats.onAttempt(n);
+            final long attemptStart = System.nanoTime();
+            Promise<T> q;
+            try {
+                q = action.call();
+                if (q == null) {
+                    q = (Promise<T>) NULL;
+                }
+            } catch (Throwable r) {
+                q = reject(r);
+            }
+            current = q;
+            q.handle(q.new Handler() {
+                @Override
+                void onFulfilled(T v) {
+                    stats.onAttemptEnd(System.nanoTime() - attemptStart);
+                    p.fulfill(v);
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    stats.onAttemptEnd(System.nanoTime() - attemptStart);
+                    current = null;
+                    if (n >= policy.getMaxAttempts() || !policy.shouldRetry(r)) {
+                        p._reject(r);
+                        return;
+                    }
+                    long delay = policy.delayNanos(n);
+                    long deadline = policy.getDeadlineNanos();
+                    if (deadline > 0 && System.nanoTime() + delay - start >= deadline) {
+                        // 与总时限到期的结果一致
+                        p._reject(new AwaitTimeoutException(r));
+                        return;
+                    }
+                    HashedWheelTimer.Timeout t = PromiseExecutors.timer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            pending = null;
+                            // action可能很慢或者阻塞, 不能在定时器线程上调用
+                            try {
+                                PromiseExecutors.defaultExecutor().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        attempt(n + 1);
+                                    }
+                                });
+                            } catch (Throwable e) {
+                                p._reject(e);
+                            }
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                    pending = t;
+                    if (p.isSettled()) {
+                        t.cancel();
+                    }
+                }
+            }, PromiseExecutors.syncExecutor());
+            if (p.isSettled() && !q.isSettled()) {
+                q.cancel();
+            }
+        }
+    }
+
+    /**
+     * 有界并发地执行变换: 一个变换完成时再读取下一个输入
+     */
+    private abstract static class Mapper<S, V> {
+        private final Iterator<S> inputs;
+        private final PromiseTransform<S, V> transform;
+        private final int concurrency;
+        private final Promise<Void> p = new Promise<>(NullStatus.instance);
+        // running transforms, canceled when p is rejected.
+        private final Set<Promise<V>> running = Collections.newSetFromMap(new ConcurrentHashMap<Promise<V>, Boolean>());
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger wip = new AtomicInteger();
+        // accessed in drain only.
+        private int count;
+        private boolean exhausted;
+
+        Mapper(Iterable<S> inputs, PromiseTransform<S, V> transform, int concurrency) {
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("concurrency must be greater than 0: " + concurrency);
+            }
+            this.inputs = inputs.iterator();
+            this.transform = transform;
+            this.concurrency = concurrency;
+        }
+
+        void onStart(int index) {
+        }
+
+        abstract void onValue(int index, V v);
+
+        Promise<Void> run() {
+            p.handleInternal(p.new Handler() {
+                @Override
+                void onRejected(Throwable r) {
+                    for (Promise<V> q : running) {
+                        q.cancel();
+                    }
+                }
+            });
+            drain();
+            return p;
+        }
+
+        /**
+         * 启动变换直到达到并发数, 同步完成的变换不会递归调用, 由当前的循环继续
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (;;) {
+                try {
+                    while (!p.isSettled() && !exhausted && active.get() < concurrency) {
+                        if (!inputs.hasNext()) {
+                            exhausted = true;
+                            break;
+                        }
+                        start(count++, inputs.next());
+                    }
+                } catch (Throwable r) {
+                    p._reject(r);
+                }
+                if (exhausted && active.get() == 0) {
+                    p.fulfill((Void) null);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void start(final int index, S input) throws Throwable {
+            onStart(index);
+            active.incrementAndGet();
+            Promise<V> q = transform.run(input);
+            if (q == null) {
+                q = (Promise<V>) NULL;
+            }
+            final Promise<V> source = q;
+            running.add(source);
+            source.handle(source.new Handler() {
+                @Override
+                void onFulfilled(V v) {
+                    try {
+                        onValue(index, v);
+                    } catch (Throwable r) {
+                        p._reject(r);
+                    }
+                }
+
+                @Override
+                void onRejected(Throwable r) {
+                    p._reject(r);
+                }
+
+                @Override
+                void onSettled() {
+                    running.remove(source);
+                    active.decrementAndGet();
+                    drain();
+                }
+            }, PromiseExecutors.syncExecutor());
+        }
+    }
+
+    private static <T> Promise<T>[] toArray(Iterable<Promise<T>> promises) {
+        Collection<Promise<T>> inputs = collect(promises);
+        return inputs.toArray(new Promise[inputs.size()]);
+    }
+
+    /**
+     * p结束之后从sources上移除handlers, 并且可选的取消未结束的sources;
+     * 是p的内部handler, 取消p的下游时p和没有其它依赖的sources也被取消
+     */
+    private static <V> void releaseLosers(Promise<V> p, final Promise[] sources, final Callback[] handlers, final boolean cancelLosers) {
+        p.handleInternal(p.new Handler() {
+            @Override
+            void onSettled() {
+                for (int i = 0; i < sources.length; i++) {
+                    sources[i].detach(handlers[i]);
+                    if (cancelLosers) {
+                        sources[i].cancel();
+                    }
+                }
+            }
+        });
     }
 }
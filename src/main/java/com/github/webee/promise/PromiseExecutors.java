@@ -1,7 +1,22 @@
 package com.github.webee.promise;
 
+import com.github.webee.promise.utils.HashedWheelTimer;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -11,8 +26,11 @@ import java.util.concurrent.atomic.AtomicReference;
 public class PromiseExecutors {
     private static final AtomicReference<PromiseExecutors> INSTANCE = new AtomicReference<>();
 
-    private final Executor defaultExecutor;
+    private static final String EXECUTOR_PROPERTY = "com.github.webee.promise.executor";
+
+    private volatile Executor defaultExecutor;
     private final Executor syncExecutor;
+    private final HashedWheelTimer timer;
 
     private static PromiseExecutors getInstance() {
         for (;;) {
@@ -28,20 +46,312 @@ public class PromiseExecutors {
     }
 
     private PromiseExecutors() {
-        defaultExecutor = Executors.newCachedThreadPool();
-        syncExecutor = new Executor() {
-            @Override
-            public void execute(Runnable command) {
-                command.run();
+        defaultExecutor = loadDefaultExecutor();
+        syncExecutor = new Trampoline();
+        timer = new HashedWheelTimer();
+    }
+
+    /**
+     * 通过ExecutorProvider加载默认执行器;
+     * 其次系统属性com.github.webee.promise.executor=virtual时使用虚拟线程(Java 21+);
+     * 都没有则使用无界的缓存线程池
+     */
+    private static Executor loadDefaultExecutor() {
+        Iterator<ExecutorProvider> providers = ServiceLoader.load(ExecutorProvider.class).iterator();
+        if (providers.hasNext()) {
+            Executor executor = providers.next().defaultExecutor();
+            if (executor != null) {
+                return executor;
             }
-        };
+        }
+        if ("virtual".equals(System.getProperty(EXECUTOR_PROPERTY)) && VirtualThreads.isSupported()) {
+            return newVirtualThreadExecutor();
+        }
+        return new ThreadPoolMonitoredExecutor(0, Integer.MAX_VALUE, new SynchronousQueue<Runnable>(),
+                null, new ThreadPoolExecutor.AbortPolicy());
     }
 
     public static Executor defaultExecutor() {
         return getInstance().defaultExecutor;
     }
 
+    /**
+     * 替换默认执行器, 之后注册的回调使用新的执行器
+     *
+     * @param executor 新的默认执行器
+     * @return 原来的默认执行器, 由调用者决定是否关闭
+     */
+    public static Executor setDefaultExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        PromiseExecutors instance = getInstance();
+        Executor previous = instance.defaultExecutor;
+        instance.defaultExecutor = executor;
+        return previous;
+    }
+
+    /**
+     * 在当前线程上执行, 嵌套的任务排队到最外层执行完成之后迭代执行
+     *
+     * @return 同步执行器
+     */
     public static Executor syncExecutor() {
         return getInstance().syncExecutor;
     }
+
+    /**
+     * 共享的定时器, 用于延时和超时, 定时任务在定时器线程上执行
+     *
+     * @return 定时器
+     */
+    public static HashedWheelTimer timer() {
+        return getInstance().timer;
+    }
+
+    /**
+     * CPU密集型任务的执行器: 工作窃取线程池, 线程数为CPU核数
+     *
+     * @return 执行器
+     */
+    public static MonitoredExecutor newCpuBoundExecutor() {
+        return newCpuBoundExecutor(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static MonitoredExecutor newCpuBoundExecutor(int parallelism) {
+        return new ForkJoinMonitoredExecutor(parallelism);
+    }
+
+    /**
+     * IO密集型任务的执行器: 有界线程池和有界队列, 饱和时拒绝(RejectedExecutionException)
+     *
+     * @param maxThreads    最大线程数
+     * @param queueCapacity 队列容量
+     * @return 执行器
+     */
+    public static MonitoredExecutor newIoBoundExecutor(int maxThreads, int queueCapacity) {
+        return newBoundedExecutor("promise-io-", maxThreads, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 有界线程池和有界队列, 饱和时在提交任务的线程上执行, 以此减缓提交速度
+     *
+     * @param maxThreads    最大线程数
+     * @param queueCapacity 队列容量
+     * @return 执行器
+     */
+    public static MonitoredExecutor newCallerRunsExecutor(int maxThreads, int queueCapacity) {
+        return newBoundedExecutor("promise-caller-runs-", maxThreads, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return 当前运行时是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    /**
+     * 每个任务一个虚拟线程的执行器(Java 21+), 适合阻塞式的Fulfillment和await
+     *
+     * @return 执行器, 队列深度总是0, 活跃数为正在执行的任务数
+     * @throws UnsupportedOperationException 运行时不支持虚拟线程
+     */
+    public static MonitoredExecutor newVirtualThreadExecutor() {
+        return new VirtualThreadMonitoredExecutor(VirtualThreads.newExecutor());
+    }
+
+    /**
+     * 显式启用省略提交: 在返回的执行器的任务中完成的Promise, 其在该执行器上的回调在fulfill()返回之前直接在当前线程执行(有深度限制).
+     * 这会改变回调相对于fulfill()之后代码的顺序, 回调中也不能等待fulfill()之后才发生的事情, 所以默认执行器和预设的执行器都不启用
+     *
+     * @param executor 实际的执行器
+     * @return 可省略提交的执行器
+     */
+    public static ElidableExecutor elidable(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (executor instanceof ElidableExecutor) {
+            return (ElidableExecutor) executor;
+        }
+        return new ElidingExecutor(executor);
+    }
+
+    private static MonitoredExecutor newBoundedExecutor(String prefix, int maxThreads, int queueCapacity,
+                                                        RejectedExecutionHandler handler) {
+        return new ThreadPoolMonitoredExecutor(maxThreads, maxThreads, new LinkedBlockingQueue<Runnable>(queueCapacity),
+                prefix, handler);
+    }
+
+    private static class ThreadPoolMonitoredExecutor implements MonitoredExecutor {
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * @param prefix 线程名前缀, 为null时使用默认的非daemon线程
+         */
+        ThreadPoolMonitoredExecutor(int coreThreads, int maxThreads, BlockingQueue<Runnable> queue,
+                                    final String prefix, RejectedExecutionHandler handler) {
+            final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(coreThreads, maxThreads, 60L, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    if (prefix == null) {
+                        return defaultFactory.newThread(r);
+                    }
+                    Thread t = new Thread(r, prefix + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, handler);
+            if (coreThreads > 0) {
+                executor.allowCoreThreadTimeOut(true);
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executor.execute(command);
+        }
+
+        @Override
+        public int getQueueSize() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public int getPoolSize() {
+            return executor.getPoolSize();
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    private static class VirtualThreadMonitoredExecutor implements MonitoredExecutor {
+        private final ExecutorService executor;
+        private final AtomicInteger active = new AtomicInteger();
+
+        VirtualThreadMonitoredExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            active.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                active.decrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getQueueSize() {
+            return 0;
+        }
+
+        @Override
+        public int getActiveCount() {
+            return active.get();
+        }
+
+        @Override
+        public int getPoolSize() {
+            return active.get();
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    private static class ForkJoinMonitoredExecutor implements MonitoredExecutor {
+        private final ForkJoinPool pool;
+
+        ForkJoinMonitoredExecutor(int parallelism) {
+            final AtomicInteger count = new AtomicInteger();
+            pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    // the constructor is protected.
+                    ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+                    };
+                    t.setName("promise-cpu-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, null, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            pool.execute(command);
+        }
+
+        @Override
+        public int getQueueSize() {
+            return (int) Math.min(Integer.MAX_VALUE, pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+
+        @Override
+        public int getActiveCount() {
+            return pool.getActiveThreadCount();
+        }
+
+        @Override
+        public int getPoolSize() {
+            return pool.getPoolSize();
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 执行任务时把当前线程标记为属于该执行器
+     */
+    private static class ElidingExecutor implements ElidableExecutor {
+        private final Executor executor;
+
+        ElidingExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean inExecutor() {
+            return Elision.isOwner(this);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Elision.runOwned(command, ElidingExecutor.this);
+                }
+            });
+        }
+    }
 }
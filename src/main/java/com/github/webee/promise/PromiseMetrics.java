@@ -0,0 +1,57 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Promise生命周期指标的SPI, 默认没有安装, 这时只有一次volatile读的开销.
+ * 只统计以pending状态创建的Promise; 回调以提交到执行器的任务为单位统计, 一批回调在一个任务中执行时记一次.
+ * 回调在触发的线程上执行, 实现必须是线程安全并且足够快的, 不能抛出异常.
+ * com.github.webee.promise.metrics.MetricsRecorder是内置的实现
+ */
+public abstract class PromiseMetrics {
+    static volatile PromiseMetrics installed;
+
+    /**
+     * 安装指标实现, 之后创建的Promise和提交的回调任务开始被统计
+     *
+     * @param metrics 指标实现, null则卸载
+     * @return 之前安装的实现
+     */
+    public static PromiseMetrics install(PromiseMetrics metrics) {
+        PromiseMetrics prev = installed;
+        installed = metrics;
+        return prev;
+    }
+
+    /**
+     * @return 当前安装的实现, 没有则返回null
+     */
+    public static PromiseMetrics installed() {
+        return installed;
+    }
+
+    /**
+     * 创建了一个pending的Promise
+     */
+    public void onCreated() {
+    }
+
+    /**
+     * 一个统计中的Promise结束了
+     *
+     * @param reason 失败原因, fulfilled时为null
+     * @param nanos  从创建到结束的时间
+     */
+    public void onSettled(Throwable reason, long nanos) {
+    }
+
+    /**
+     * 一个回调任务执行完成
+     *
+     * @param executor   执行器
+     * @param queueNanos 从提交到开始执行的时间
+     * @param runNanos   执行时间
+     */
+    public void onTaskRun(Executor executor, long queueNanos, long runNanos) {
+    }
+}
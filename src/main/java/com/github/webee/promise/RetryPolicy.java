@@ -0,0 +1,136 @@
+package com.github.webee.promise;
+
+import com.github.webee.promise.functions.Predicate;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Promise.retry的重试策略, 不可变, with*方法返回修改之后的新策略(统计也是新的).
+ * 默认: 最多3次, 指数退避100ms起每次乘2最大10s, 抖动±20%, 除了取消之外的所有原因都重试, 没有总时限
+ */
+public final class RetryPolicy {
+    private static final Predicate<Throwable> RETRY_NOT_CANCELED = new Predicate<Throwable>() {
+        @Override
+        public boolean test(Throwable r) {
+            return !(r instanceof PromiseCanceledException);
+        }
+    };
+
+    private final int maxAttempts;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double multiplier;
+    private final double jitter;
+    private final Predicate<Throwable> retryOn;
+    private final long deadlineNanos;
+    private final RetryStats stats = new RetryStats();
+
+    public RetryPolicy() {
+        this(3, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.SECONDS.toNanos(10), 2.0, 0.2, RETRY_NOT_CANCELED, 0);
+    }
+
+    private RetryPolicy(int maxAttempts, long initialDelayNanos, long maxDelayNanos, double multiplier, double jitter,
+                        Predicate<Throwable> retryOn, long deadlineNanos) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.retryOn = retryOn;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @param maxAttempts 最多尝试次数, 包括第一次
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0: " + maxAttempts);
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryOn, deadlineNanos);
+    }
+
+    /**
+     * @param initialDelay 第一次重试之前的延时
+     * @param maxDelay     最大延时
+     * @param unit         时间单位
+     */
+    public RetryPolicy withBackoff(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid backoff: " + initialDelay + ", " + maxDelay);
+        }
+        return new RetryPolicy(maxAttempts, unit.toNanos(initialDelay), unit.toNanos(maxDelay), multiplier, jitter,
+                retryOn, deadlineNanos);
+    }
+
+    /**
+     * @param multiplier 每次重试延时的倍数, 1为固定延时
+     */
+    public RetryPolicy withMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryOn, deadlineNanos);
+    }
+
+    /**
+     * @param jitter 延时随机浮动的比例, [0, 1]
+     */
+    public RetryPolicy withJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in [0, 1]: " + jitter);
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryOn, deadlineNanos);
+    }
+
+    /**
+     * @param retryOn 判断rejected原因是否需要重试
+     */
+    public RetryPolicy withRetryOn(Predicate<Throwable> retryOn) {
+        if (retryOn == null) {
+            throw new NullPointerException("retryOn");
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryOn, deadlineNanos);
+    }
+
+    /**
+     * @param deadline 总时限, 超时或者下一次重试会超时则reject为AwaitTimeoutException并取消正在进行的尝试; 0为不限
+     * @param unit     时间单位
+     */
+    public RetryPolicy withDeadline(long deadline, TimeUnit unit) {
+        if (deadline < 0) {
+            throw new IllegalArgumentException("deadline must not be negative: " + deadline);
+        }
+        return new RetryPolicy(maxAttempts, initialDelayNanos, maxDelayNanos, multiplier, jitter, retryOn,
+                unit.toNanos(deadline));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public RetryStats getStats() {
+        return stats;
+    }
+
+    boolean shouldRetry(Throwable r) {
+        return retryOn.test(r);
+    }
+
+    /**
+     * @param attempt 已经失败的尝试次数, 从1开始
+     * @return 下一次尝试之前的延时, 纳秒
+     */
+    long delayNanos(int attempt) {
+        double delay = Math.min(maxDelayNanos, initialDelayNanos * Math.pow(multiplier, attempt - 1));
+        if (jitter > 0) {
+            delay *= 1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) Math.min(delay, maxDelayNanos);
+    }
+}
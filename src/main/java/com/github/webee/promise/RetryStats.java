@@ -0,0 +1,99 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重试的统计, 每个RetryPolicy一份, 由使用该策略的所有retry调用累计
+ */
+public class RetryStats {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong attemptNanos = new AtomicLong();
+    private final AtomicLong maxAttemptNanos = new AtomicLong();
+    private final AtomicLong callNanos = new AtomicLong();
+
+    void onCall() {
+        calls.incrementAndGet();
+    }
+
+    void onAttempt(int attempt) {
+        attempts.incrementAndGet();
+        if (attempt > 1) {
+            retries.incrementAndGet();
+        }
+    }
+
+    void onAttemptEnd(long nanos) {
+        attemptNanos.addAndGet(nanos);
+        for (;;) {
+            long max = maxAttemptNanos.get();
+            if (nanos <= max || maxAttemptNanos.compareAndSet(max, nanos)) {
+                return;
+            }
+        }
+    }
+
+    void onCallEnd(boolean success, long nanos) {
+        (success ? succeeded : failed).incrementAndGet();
+        callNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return retry调用次数
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return 尝试次数, 包括第一次
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return 重试次数, 不包括第一次
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return 所有尝试的总耗时, 纳秒
+     */
+    public long getAttemptNanos() {
+        return attemptNanos.get();
+    }
+
+    /**
+     * @return 单次尝试的最大耗时, 纳秒
+     */
+    public long getMaxAttemptNanos() {
+        return maxAttemptNanos.get();
+    }
+
+    /**
+     * @return 所有结束的调用的总耗时(包括退避等待), 纳秒
+     */
+    public long getCallNanos() {
+        return callNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryStats{calls=" + getCalls() + ", attempts=" + getAttempts() + ", retries=" + getRetries()
+                + ", succeeded=" + getSucceeded() + ", failed=" + getFailed() + "}";
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.webee.promise;
+
+/**
+ * 状态更新超过订阅者的缓冲容量
+ */
+public class StatusOverflowException extends RuntimeException {
+    public StatusOverflowException(int capacity) {
+        super("status buffer overflow, capacity: " + capacity);
+    }
+}
@@ -0,0 +1,304 @@
+package com.github.webee.promise;
+
+import com.github.webee.promise.functions.Action;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把Promise的状态更新作为Reactive Streams的Publisher: 按request(n)发送, 每个订阅者有一个有界的缓冲,
+ * 缓冲满时按Overflow处理; Promise fulfilled时发送完缓冲的状态之后onComplete, rejected时立即onError.
+ * 新的订阅者先收到当前状态; null状态被忽略(Reactive Streams不允许null元素).
+ * 需要依赖org.reactivestreams:reactive-streams
+ *
+ * @param <V> 状态值类型
+ */
+public final class StatusPublisher<V> implements Publisher<V> {
+    /**
+     * 缓冲满时的处理策略
+     */
+    public enum Overflow {
+        // 丢弃最早的状态
+        DROP_OLDEST,
+        // 只保留最新的状态, 忽略缓冲大小
+        LATEST,
+        // 以StatusOverflowException结束订阅
+        ERROR
+    }
+
+    private static final Object NONE = new Object();
+    private static final Object COMPLETE = new Object();
+
+    private final int bufferSize;
+    private final Overflow overflow;
+    // guarded by this.
+    private final List<StatusSubscription> subscriptions = new ArrayList<>();
+    private Object latest = NONE;
+    private Object terminal;
+
+    private StatusPublisher(int bufferSize, Overflow overflow) {
+        this.bufferSize = overflow == Overflow.LATEST ? 1 : bufferSize;
+        this.overflow = overflow;
+    }
+
+    public static <V> StatusPublisher<V> of(Promise<?> promise) {
+        return of(promise, 16, Overflow.DROP_OLDEST);
+    }
+
+    /**
+     * @param promise    Promise
+     * @param bufferSize 每个订阅者的缓冲大小
+     * @param overflow   缓冲满时的处理策略
+     * @param <V>        状态值类型
+     * @return 状态的Publisher
+     */
+    public static <V> StatusPublisher<V> of(Promise<?> promise, int bufferSize, Overflow overflow) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0: " + bufferSize);
+        }
+        if (overflow == null) {
+            throw new NullPointerException("overflow");
+        }
+        final StatusPublisher<V> publisher = new StatusPublisher<>(bufferSize, overflow);
+        publisher.listen(promise);
+        return publisher;
+    }
+
+    private <T> void listen(Promise<T> promise) {
+        // 在更新的线程上直接放入各订阅者的缓冲, 不提交任务
+        promise.status(PromiseExecutors.syncExecutor(), new Action<Object>() {
+            @Override
+            public void run(Object s) {
+                onStatus(s);
+            }
+        });
+        promise.handle(promise.new Handler() {
+            @Override
+            void onFulfilled(T v) {
+                onTerminal(COMPLETE);
+            }
+
+            @Override
+            void onRejected(Throwable r) {
+                onTerminal(r);
+            }
+        }, PromiseExecutors.syncExecutor());
+    }
+
+    private void onStatus(Object s) {
+        if (s == null || s == Promise.NullStatus.instance) {
+            return;
+        }
+        List<StatusSubscription> overflowed = null;
+        synchronized (this) {
+            if (terminal != null) {
+                return;
+            }
+            latest = s;
+            for (StatusSubscription subscription : subscriptions) {
+                if (!subscription.offer(s)) {
+                    if (overflowed == null) {
+                        overflowed = new ArrayList<>();
+                    }
+                    overflowed.add(subscription);
+                }
+            }
+        }
+        if (overflowed != null) {
+            for (StatusSubscription subscription : overflowed) {
+                subscription.terminate(new StatusOverflowException(bufferSize));
+            }
+        }
+        drainAll();
+    }
+
+    private void onTerminal(Object t) {
+        List<StatusSubscription> current;
+        synchronized (this) {
+            terminal = t;
+            current = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+        }
+        for (StatusSubscription subscription : current) {
+            subscription.terminate(t);
+        }
+    }
+
+    private void drainAll() {
+        List<StatusSubscription> current;
+        synchronized (this) {
+            current = new ArrayList<>(subscriptions);
+        }
+        for (StatusSubscription subscription : current) {
+            subscription.drain();
+        }
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super V> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        StatusSubscription subscription = new StatusSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (subscription.cancelled) {
+            return;
+        }
+        Object t;
+        synchronized (this) {
+            if (latest != NONE) {
+                subscription.offer(latest);
+            }
+            t = terminal;
+            if (t == null) {
+                subscriptions.add(subscription);
+            }
+        }
+        if (t != null) {
+            subscription.terminate(t);
+        } else {
+            subscription.drain();
+        }
+    }
+
+    private synchronized void remove(StatusSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    private final class StatusSubscription implements Subscription {
+        private final Subscriber<? super V> subscriber;
+        // guarded by itself.
+        private final ArrayDeque<Object> buffer = new ArrayDeque<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile Object terminal;
+        private volatile boolean cancelled;
+
+        StatusSubscription(Subscriber<? super V> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return 是否放入缓冲, 缓冲满并且策略为ERROR时返回false
+         */
+        boolean offer(Object s) {
+            synchronized (buffer) {
+                if (buffer.size() >= bufferSize) {
+                    if (overflow == Overflow.ERROR) {
+                        return false;
+                    }
+                    buffer.poll();
+                }
+                buffer.add(s);
+                return true;
+            }
+        }
+
+        /**
+         * 结束订阅: COMPLETE在发送完缓冲的状态之后发送; Throwable丢弃缓冲的状态立即发送, 不会被之后的结束信号覆盖.
+         * 信号都在drain中发送, 和onNext串行
+         *
+         * @param t COMPLETE或者Throwable
+         */
+        void terminate(Object t) {
+            if (t != COMPLETE) {
+                remove(this);
+            }
+            synchronized (buffer) {
+                if (t != COMPLETE) {
+                    buffer.clear();
+                }
+                if (!(terminal instanceof Throwable)) {
+                    terminal = t;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // 规则3.9: 以IllegalArgumentException结束订阅
+                terminate(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+            for (;;) {
+                long r = requested.get();
+                long u = r + n;
+                if (u < 0) {
+                    u = Long.MAX_VALUE;
+                }
+                if (requested.compareAndSet(r, u)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+        }
+
+        /**
+         * 串行发送缓冲的状态和结束信号, 同一时刻只有一个线程执行
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    Object s;
+                    synchronized (buffer) {
+                        s = buffer.poll();
+                    }
+                    if (s == null) {
+                        break;
+                    }
+                    subscriber.onNext((V) s);
+                    e++;
+                }
+                if (cancelled) {
+                    return;
+                }
+                Object t = terminal;
+                if (t != null) {
+                    boolean empty;
+                    synchronized (buffer) {
+                        empty = buffer.isEmpty();
+                    }
+                    if (empty) {
+                        cancelled = true;
+                        if (t == COMPLETE) {
+                            subscriber.onComplete();
+                        } else {
+                            subscriber.onError((Throwable) t);
+                        }
+                        return;
+                    }
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.webee.promise;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * 同步执行器, 嵌套执行的任务在当前线程上排队迭代执行, 使同步的Promise链保持固定的栈深度
+ */
+final class Trampoline implements Executor {
+    private static final ThreadLocal<Frame> FRAME = new ThreadLocal<Frame>() {
+        @Override
+        protected Frame initialValue() {
+            return new Frame();
+        }
+    };
+
+    private static final class Frame {
+        boolean running;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        // first error of the tasks run by runQueued, rethrown when the frame exits.
+        Throwable error;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Frame frame = FRAME.get();
+        if (frame.running) {
+            frame.tasks.add(command);
+            return;
+        }
+
+        frame.running = true;
+        Throwable error = null;
+        try {
+            command.run();
+        } catch (Throwable e) {
+            error = e;
+        }
+        rethrow(drain(frame, error));
+    }
+
+    /**
+     * 进入trampoline, 之后必须调用exit
+     *
+     * @return 是否进入, 已经在trampoline中执行则返回false
+     */
+    static boolean enter() {
+        Frame frame = FRAME.get();
+        if (frame.running) {
+            return false;
+        }
+        frame.running = true;
+        return true;
+    }
+
+    /**
+     * 执行排队的任务并退出trampoline
+     */
+    static void exit() {
+        rethrow(drain(FRAME.get(), null));
+    }
+
+    /**
+     * 在当前trampoline中执行已经排队的任务, 阻塞等待之前调用:
+     * 同步回调中await同步链时, 链的后续任务排在当前回调之后, 不先执行就永远等不到
+     */
+    static void runQueued() {
+        Frame frame = FRAME.get();
+        if (!frame.running) {
+            return;
+        }
+        Runnable task;
+        while ((task = frame.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                if (frame.error == null) {
+                    frame.error = e;
+                }
+            }
+        }
+    }
+
+    private static Throwable drain(Frame frame, Throwable error) {
+        if (frame.error == null) {
+            frame.error = error;
+        }
+        try {
+            Runnable task;
+            while ((task = frame.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    if (frame.error == null) {
+                        frame.error = e;
+                    }
+                }
+            }
+        } finally {
+            frame.running = false;
+            error = frame.error;
+            frame.error = null;
+        }
+        return error;
+    }
+
+    private static void rethrow(Throwable error) {
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+}
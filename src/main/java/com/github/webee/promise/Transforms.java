@@ -6,6 +6,14 @@ import java.util.concurrent.TimeUnit;
  * Created by webee on 16/11/22.
  */
 public class Transforms {
+    /**
+     * 阻塞执行线程的延时, 不阻塞线程的延时使用Promise.delay或者Promise.delayed;
+     * 在虚拟线程上执行时只挂起虚拟线程, 不占用载体线程
+     *
+     * @param time 延时
+     * @param unit 时间单位
+     * @return 延时动作
+     */
     public static Runnable delay(final long time, final TimeUnit unit) {
         return new Runnable() {
             @Override
@@ -0,0 +1,19 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 虚拟线程支持, Java 21的实现在src/main/java21中, 打包到multi-release jar的META-INF/versions/21下
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ExecutorService newExecutor() {
+        throw new UnsupportedOperationException("virtual threads require Java 21+");
+    }
+}
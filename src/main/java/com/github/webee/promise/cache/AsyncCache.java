@@ -0,0 +1,403 @@
+package com.github.webee.promise.cache;
+
+import com.github.webee.promise.Deferred;
+import com.github.webee.promise.Promise;
+import com.github.webee.promise.PromiseExecutors;
+import com.github.webee.promise.PromiseTransform;
+import com.github.webee.promise.functions.Action;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 异步加载缓存: 保存加载中和已经加载的Promise, 同一个key的并发加载合并为一次;
+ * 按容量淘汰(分段LRU), 过期时间(TTL)和提前刷新; rejected的加载不会被缓存.
+ * get返回的Promise由所有调用者共享, 不要取消它
+ *
+ * @param <K> key类型
+ * @param <V> 值类型
+ */
+public class AsyncCache<K, V> {
+    private static final long LOADING = Long.MIN_VALUE;
+
+    private final PromiseTransform<K, V> loader;
+    private final long expireNanos;
+    private final long refreshNanos;
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final SegmentedLru<K, V> lru;
+    private final CacheStats stats = new CacheStats();
+
+    private AsyncCache(Builder<K, V> builder) {
+        loader = builder.loader;
+        expireNanos = builder.expireNanos;
+        refreshNanos = builder.refreshNanos;
+        lru = new SegmentedLru<>(builder.maximumSize);
+    }
+
+    public static <K, V> Builder<K, V> builder(PromiseTransform<K, V> loader) {
+        return new Builder<>(loader);
+    }
+
+    /**
+     * 获取key的值, 没有或者已经过期则加载, 同一个key同时只有一个加载;
+     * 超过刷新时间时在后台重新加载, 完成之前仍然返回当前的值
+     *
+     * @param key key
+     * @return 值的Promise
+     */
+    public Promise<V> get(K key) {
+        for (;;) {
+            long now = System.nanoTime();
+            Node<K, V> node = map.get(key);
+            if (node != null) {
+                long loadedAt = node.loadedAt;
+                if (loadedAt == LOADING || !expired(loadedAt, now)) {
+                    stats.onHit();
+                    lru.access(node);
+                    if (loadedAt != LOADING && refreshNanos > 0 && now - loadedAt >= refreshNanos) {
+                        refresh(node);
+                    }
+                    return node.promise;
+                }
+                Node<K, V> fresh = new Node<>(key);
+                if (map.replace(key, node, fresh)) {
+                    lru.remove(node);
+                    return load(fresh);
+                }
+            } else {
+                Node<K, V> fresh = new Node<>(key);
+                if (map.putIfAbsent(key, fresh) == null) {
+                    return load(fresh);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key key
+     * @return 已经缓存(包括加载中)并且没有过期的值, 没有则返回null, 不会加载
+     */
+    public Promise<V> getIfPresent(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            stats.onMiss();
+            return null;
+        }
+        long loadedAt = node.loadedAt;
+        if (loadedAt != LOADING && expired(loadedAt, System.nanoTime())) {
+            stats.onMiss();
+            return null;
+        }
+        stats.onHit();
+        lru.access(node);
+        return node.promise;
+    }
+
+    /**
+     * 放入一个已知的值, 替换原有的项
+     */
+    public void put(K key, V value) {
+        Node<K, V> node = new Node<>(key, Promise.resolve(value), System.nanoTime());
+        Node<K, V> old = map.put(key, node);
+        if (old != null) {
+            lru.remove(old);
+        }
+        add(node);
+    }
+
+    public void invalidate(K key) {
+        Node<K, V> node = map.remove(key);
+        if (node != null) {
+            lru.remove(node);
+        }
+    }
+
+    public void invalidateAll() {
+        for (K key : map.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * @return 缓存的项数, 包括加载中和已经过期但还没有清除的项
+     */
+    public long size() {
+        return map.size();
+    }
+
+    public CacheStats stats() {
+        return stats;
+    }
+
+    private boolean expired(long loadedAt, long now) {
+        return expireNanos > 0 && now - loadedAt >= expireNanos;
+    }
+
+    private Promise<V> load(final Node<K, V> node) {
+        stats.onMiss();
+        // 先加入淘汰策略, 同步rejected时才能被正确移除
+        add(node);
+        final long start = System.nanoTime();
+        node.deferred.fulfill(callLoader(node.key));
+        node.promise.fulfilled(PromiseExecutors.syncExecutor(), new Action<V>() {
+            @Override
+            public void run(V v) {
+                long now = System.nanoTime();
+                stats.onLoad(true, now - start);
+                node.loadedAt = now == LOADING ? now + 1 : now;
+            }
+        }).rejected(PromiseExecutors.syncExecutor(), new Action<Throwable>() {
+            @Override
+            public void run(Throwable r) {
+                stats.onLoad(false, System.nanoTime() - start);
+                if (map.remove(node.key, node)) {
+                    lru.remove(node);
+                }
+            }
+        });
+        return node.promise;
+    }
+
+    private void refresh(final Node<K, V> node) {
+        if (!node.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        stats.onRefresh();
+        final long start = System.nanoTime();
+        callLoader(node.key).fulfilled(PromiseExecutors.syncExecutor(), new Action<V>() {
+            @Override
+            public void run(V v) {
+                long now = System.nanoTime();
+                stats.onLoad(true, now - start);
+                Node<K, V> fresh = new Node<>(node.key, Promise.resolve(v), now == LOADING ? now + 1 : now);
+                if (map.replace(node.key, node, fresh)) {
+                    lru.remove(node);
+                    add(fresh);
+                }
+            }
+        }).rejected(PromiseExecutors.syncExecutor(), new Action<Throwable>() {
+            @Override
+            public void run(Throwable r) {
+                // 保留原来的值, 之后的访问会再次刷新
+                stats.onLoad(false, System.nanoTime() - start);
+                node.refreshing.set(false);
+            }
+        });
+    }
+
+    private Promise<V> callLoader(K key) {
+        try {
+            Promise<V> p = loader.run(key);
+            return p != null ? p : Promise.<V>resolve((V) null);
+        } catch (Throwable r) {
+            return Promise.reject(r);
+        }
+    }
+
+    /**
+     * 把已经放入map的项加入淘汰策略; 链入之后再检查映射, 并发的invalidate或者替换可能在链入之前就移除了它,
+     * 这时它的lru.remove没有效果, 由这里移除, 不会留下孤立的节点
+     */
+    private void add(Node<K, V> node) {
+        Node<K, V> victim = lru.add(node);
+        if (map.get(node.key) != node) {
+            lru.remove(node);
+        }
+        while (victim != null) {
+            if (map.remove(victim.key, victim)) {
+                stats.onEviction();
+            }
+            victim = lru.add(null);
+        }
+    }
+
+    static final class Node<K, V> {
+        final K key;
+        final Deferred<V> deferred;
+        final Promise<V> promise;
+        // LOADING until fulfilled.
+        volatile long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        // guarded by the lru lock.
+        Node<K, V> prev;
+        Node<K, V> next;
+        int segment = SegmentedLru.NONE;
+
+        Node(K key) {
+            this.key = key;
+            deferred = new Deferred<>();
+            promise = deferred.promise;
+            loadedAt = LOADING;
+        }
+
+        Node(K key, Promise<V> promise, long loadedAt) {
+            this.key = key;
+            deferred = null;
+            this.promise = promise;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * 分段LRU: 新的项进入试用段, 再次访问的项进入保护段(80%容量), 保护段溢出的项降回试用段, 从试用段尾部淘汰.
+     * 读访问只在拿到锁时记录, 锁竞争时跳过, 不阻塞读
+     */
+    static final class SegmentedLru<K, V> {
+        static final int NONE = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maximumSize;
+        private final long maximumProtected;
+        private final Node<K, V> probation = sentinel();
+        private final Node<K, V> protect = sentinel();
+        private long size;
+        private long protectedSize;
+
+        SegmentedLru(long maximumSize) {
+            this.maximumSize = maximumSize;
+            this.maximumProtected = maximumSize - maximumSize / 5;
+        }
+
+        private static <K, V> Node<K, V> sentinel() {
+            Node<K, V> node = new Node<>(null, null, 0);
+            node.prev = node;
+            node.next = node;
+            return node;
+        }
+
+        /**
+         * 加入新的项, node为null时只检查容量
+         *
+         * @return 需要淘汰的项, 每次最多一个, 没有则返回null
+         */
+        Node<K, V> add(Node<K, V> node) {
+            lock.lock();
+            try {
+                if (node != null && node.segment == NONE) {
+                    link(probation, node);
+                    node.segment = PROBATION;
+                    size++;
+                }
+                if (size <= maximumSize) {
+                    return null;
+                }
+                Node<K, V> victim = probation.prev != probation ? probation.prev : protect.prev;
+                unlink(victim);
+                return victim;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void access(Node<K, V> node) {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (node.segment == PROBATION) {
+                    detach(node);
+                    link(protect, node);
+                    node.segment = PROTECTED;
+                    protectedSize++;
+                    while (protectedSize > maximumProtected) {
+                        Node<K, V> demoted = protect.prev;
+                        detach(demoted);
+                        protectedSize--;
+                        link(probation, demoted);
+                        demoted.segment = PROBATION;
+                    }
+                } else if (node.segment == PROTECTED) {
+                    detach(node);
+                    link(protect, node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(Node<K, V> node) {
+            lock.lock();
+            try {
+                unlink(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void unlink(Node<K, V> node) {
+            if (node.segment == NONE) {
+                return;
+            }
+            if (node.segment == PROTECTED) {
+                protectedSize--;
+            }
+            detach(node);
+            node.segment = NONE;
+            size--;
+        }
+
+        private void detach(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void link(Node<K, V> head, Node<K, V> node) {
+            node.next = head.next;
+            node.prev = head;
+            head.next.prev = node;
+            head.next = node;
+        }
+    }
+
+    public static class Builder<K, V> {
+        private final PromiseTransform<K, V> loader;
+        private long maximumSize = Long.MAX_VALUE;
+        private long expireNanos;
+        private long refreshNanos;
+
+        private Builder(PromiseTransform<K, V> loader) {
+            if (loader == null) {
+                throw new NullPointerException("loader");
+            }
+            this.loader = loader;
+        }
+
+        /**
+         * @param maximumSize 最大项数, 超过时淘汰
+         */
+        public Builder<K, V> maximumSize(long maximumSize) {
+            if (maximumSize <= 0) {
+                throw new IllegalArgumentException("maximumSize must be greater than 0: " + maximumSize);
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * @param duration 加载完成之后经过这个时间过期, 过期之后的访问重新加载
+         */
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            expireNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * @param duration 加载完成之后经过这个时间的访问在后台重新加载, 应该小于过期时间
+         */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+            refreshNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public AsyncCache<K, V> build() {
+            return new AsyncCache<>(this);
+        }
+    }
+}
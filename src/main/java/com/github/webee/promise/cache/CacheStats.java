@@ -0,0 +1,92 @@
+package com.github.webee.promise.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AsyncCache的统计
+ */
+public class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadSuccesses = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    void onHit() {
+        hits.incrementAndGet();
+    }
+
+    void onMiss() {
+        misses.incrementAndGet();
+    }
+
+    void onLoad(boolean success, long nanos) {
+        (success ? loadSuccesses : loadFailures).incrementAndGet();
+        loadNanos.addAndGet(nanos);
+    }
+
+    void onRefresh() {
+        refreshes.incrementAndGet();
+    }
+
+    void onEviction() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * @return 命中次数, 包括命中正在加载的项
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    public long getLoadSuccesses() {
+        return loadSuccesses.get();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    /**
+     * @return 所有加载(包括提前刷新)的总耗时, 纳秒
+     */
+    public long getLoadNanos() {
+        return loadNanos.get();
+    }
+
+    public double getAverageLoadNanos() {
+        long loads = getLoadSuccesses() + getLoadFailures();
+        return loads == 0 ? 0 : (double) getLoadNanos() / loads;
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return 因为容量被淘汰的项数
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + getHits() + ", misses=" + getMisses() + ", loadSuccesses=" + getLoadSuccesses()
+                + ", loadFailures=" + getLoadFailures() + ", refreshes=" + getRefreshes()
+                + ", evictions=" + getEvictions() + "}";
+    }
+}
@@ -0,0 +1,8 @@
+package com.github.webee.promise.functions;
+
+/**
+ * 判断条件
+ */
+public interface Predicate<T> {
+    boolean test(T t);
+}
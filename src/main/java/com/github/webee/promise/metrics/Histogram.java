@@ -0,0 +1,153 @@
+package com.github.webee.promise.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数线性直方图: 每个2的幂区间分为8个桶, 相对误差不超过12.5%, 固定488个桶覆盖所有非负long.
+ * record只有几次原子加, 没有锁和分配; 快照不是原子的, 并发记录时各个值之间可能有微小的偏差
+ */
+public class Histogram {
+    // 每个2的幂区间的子桶数为2^SUB_BITS.
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value 值, 负数记为0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        for (;;) {
+            long m = max.get();
+            if (value <= m || max.compareAndSet(m, value)) {
+                break;
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long m = max.get();
+        return new Snapshot(count, count == 0 ? 0 : sum.get() / count, m,
+                percentile(counts, count, m, 0.5),
+                percentile(counts, count, m, 0.9),
+                percentile(counts, count, m, 0.99),
+                percentile(counts, count, m, 0.999));
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return 桶的上界(包含)
+     */
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lower = (SUB_COUNT + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    private static long percentile(long[] counts, long count, long max, double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 直方图的快照, 百分位数是所在桶的上界
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+
+        public Snapshot(long count, long mean, long max, long p50, long p90, long p99, long p999) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{count=" + count + ", mean=" + mean + ", max=" + max
+                    + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", p999=" + p999 + "}";
+        }
+    }
+}
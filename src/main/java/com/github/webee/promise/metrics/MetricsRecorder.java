@@ -0,0 +1,152 @@
+package com.github.webee.promise.metrics;
+
+import com.github.webee.promise.MonitoredExecutor;
+import com.github.webee.promise.PromiseExecutors;
+import com.github.webee.promise.PromiseMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 内置的PromiseMetrics实现: 原子计数和无锁直方图, 可以注册为JMX MBean
+ */
+public class MetricsRecorder extends PromiseMetrics implements PromiseMetricsMXBean {
+    public static final String OBJECT_NAME = "com.github.webee.promise:type=PromiseMetrics";
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong settled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Histogram settleNanos = new Histogram();
+    private final Histogram queueWaitNanos = new Histogram();
+    private final Histogram runNanos = new Histogram();
+
+    /**
+     * 创建并安装一个MetricsRecorder
+     *
+     * @return 安装的MetricsRecorder
+     */
+    public static MetricsRecorder install() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        PromiseMetrics.install(recorder);
+        return recorder;
+    }
+
+    /**
+     * 注册到平台MBeanServer, 名字为OBJECT_NAME, 替换已经注册的MBean
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onCreated() {
+        created.incrementAndGet();
+    }
+
+    @Override
+    public void onSettled(Throwable reason, long nanos) {
+        settled.incrementAndGet();
+        if (reason != null) {
+            rejected.incrementAndGet();
+        }
+        settleNanos.record(nanos);
+    }
+
+    @Override
+    public void onTaskRun(Executor executor, long queueNanos, long runNanos) {
+        queueWaitNanos.record(queueNanos);
+        this.runNanos.record(runNanos);
+    }
+
+    @Override
+    public long getCreated() {
+        return created.get();
+    }
+
+    @Override
+    public long getSettled() {
+        return settled.get();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getPending() {
+        // settled is read first, so a concurrent settle can't make it negative.
+        long s = settled.get();
+        return Math.max(0, created.get() - s);
+    }
+
+    @Override
+    public Histogram.Snapshot getSettleNanos() {
+        return settleNanos.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getQueueWaitNanos() {
+        return queueWaitNanos.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getRunNanos() {
+        return runNanos.snapshot();
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        MonitoredExecutor executor = monitoredExecutor();
+        return executor != null ? executor.getQueueSize() : -1;
+    }
+
+    @Override
+    public int getExecutorActiveCount() {
+        MonitoredExecutor executor = monitoredExecutor();
+        return executor != null ? executor.getActiveCount() : -1;
+    }
+
+    @Override
+    public int getExecutorPoolSize() {
+        MonitoredExecutor executor = monitoredExecutor();
+        return executor != null ? executor.getPoolSize() : -1;
+    }
+
+    @Override
+    public void resetHistograms() {
+        settleNanos.reset();
+        queueWaitNanos.reset();
+        runNanos.reset();
+    }
+
+    private static MonitoredExecutor monitoredExecutor() {
+        Executor executor = PromiseExecutors.defaultExecutor();
+        return executor instanceof MonitoredExecutor ? (MonitoredExecutor) executor : null;
+    }
+}
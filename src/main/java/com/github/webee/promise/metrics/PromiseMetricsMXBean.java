@@ -0,0 +1,52 @@
+package com.github.webee.promise.metrics;
+
+/**
+ * MetricsRecorder的JMX接口, 时间单位为纳秒
+ */
+public interface PromiseMetricsMXBean {
+    long getCreated();
+
+    long getSettled();
+
+    long getRejected();
+
+    /**
+     * @return 已经创建还没有结束的Promise数
+     */
+    long getPending();
+
+    /**
+     * @return 从创建到结束的时间
+     */
+    Histogram.Snapshot getSettleNanos();
+
+    /**
+     * @return 回调任务从提交到开始执行的时间, 执行器饱和时明显变长
+     */
+    Histogram.Snapshot getQueueWaitNanos();
+
+    /**
+     * @return 回调任务的执行时间
+     */
+    Histogram.Snapshot getRunNanos();
+
+    /**
+     * @return 默认执行器排队的任务数, 不是MonitoredExecutor时为-1
+     */
+    int getExecutorQueueSize();
+
+    /**
+     * @return 默认执行器正在执行任务的线程数, 不是MonitoredExecutor时为-1
+     */
+    int getExecutorActiveCount();
+
+    /**
+     * @return 默认执行器的线程数, 不是MonitoredExecutor时为-1
+     */
+    int getExecutorPoolSize();
+
+    /**
+     * 清空直方图, 计数不变
+     */
+    void resetHistograms();
+}
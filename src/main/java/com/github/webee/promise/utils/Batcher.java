@@ -0,0 +1,186 @@
+package com.github.webee.promise.utils;
+
+import com.github.webee.promise.Deferred;
+import com.github.webee.promise.Promise;
+import com.github.webee.promise.PromiseExecutors;
+import com.github.webee.promise.PromiseTransform;
+import com.github.webee.promise.functions.Action;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A micro-batcher: keys loaded within a window are sent to the batch function
+ * in one call, and its result is fanned back to the promise of each key.
+ * A batch is dispatched when it reaches the max size or the window after its
+ * first key elapses, whichever comes first. Duplicate keys in one batch share
+ * a promise; results are not cached across batches.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the value
+ */
+public class Batcher<K, V> {
+    private final PromiseTransform<Set<K>, Map<K, V>> batchFunction;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    // guarded by this.
+    private LinkedHashMap<K, Deferred<V>> queue = new LinkedHashMap<>();
+    private HashedWheelTimer.Timeout timeout;
+
+    /**
+     * Batches up to 100 keys within 10 milliseconds.
+     */
+    public Batcher(PromiseTransform<Set<K>, Map<K, V>> batchFunction) {
+        this(batchFunction, 100, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param batchFunction loads the values of a batch of keys, keys missing from the map resolve to null
+     * @param maxBatchSize  max number of distinct keys in a batch
+     * @param window        max time a key waits for its batch, 0 to dispatch only
+     *                      on the max size or {@link #dispatch()}
+     * @param unit          unit of the window
+     */
+    public Batcher(PromiseTransform<Set<K>, Map<K, V>> batchFunction, int maxBatchSize, long window, TimeUnit unit) {
+        if (batchFunction == null) {
+            throw new NullPointerException("batchFunction");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than 0: " + maxBatchSize);
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative: " + window);
+        }
+        this.batchFunction = batchFunction;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * Queues a key into the current batch.
+     *
+     * @param key the key
+     * @return the promise of the value, rejected if its batch fails
+     */
+    public Promise<V> load(K key) {
+        Deferred<V> deferred;
+        LinkedHashMap<K, Deferred<V>> batch = null;
+        synchronized (this) {
+            deferred = queue.get(key);
+            if (deferred != null) {
+                return deferred.promise;
+            }
+            deferred = new Deferred<>();
+            queue.put(key, deferred);
+            if (queue.size() >= maxBatchSize) {
+                batch = take();
+            } else if (queue.size() == 1 && windowNanos > 0) {
+                Expiry expiry = new Expiry();
+                timeout = expiry.timeout = PromiseExecutors.timer().schedule(expiry, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+        return deferred.promise;
+    }
+
+    /**
+     * Dispatches the queued keys now.
+     */
+    public void dispatch() {
+        LinkedHashMap<K, Deferred<V>> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    private LinkedHashMap<K, Deferred<V>> take() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (queue.isEmpty()) {
+            return null;
+        }
+        LinkedHashMap<K, Deferred<V>> batch = queue;
+        queue = new LinkedHashMap<>();
+        return batch;
+    }
+
+    private void onTimeout(Expiry expiry) {
+        final LinkedHashMap<K, Deferred<V>> batch;
+        synchronized (this) {
+            // a stale timeout, its batch has been taken and the field may hold a newer one.
+            if (timeout != expiry.timeout) {
+                return;
+            }
+            timeout = null;
+            batch = take();
+        }
+        if (batch == null) {
+            return;
+        }
+        // keep the timer thread free of the batch function.
+        try {
+            PromiseExecutors.defaultExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(batch);
+                }
+            });
+        } catch (Throwable r) {
+            reject(batch, r);
+        }
+    }
+
+    private void dispatch(final LinkedHashMap<K, Deferred<V>> batch) {
+        Promise<Map<K, V>> p;
+        try {
+            p = batchFunction.run(Collections.unmodifiableSet(batch.keySet()));
+        } catch (Throwable r) {
+            p = Promise.reject(r);
+        }
+        if (p == null) {
+            p = Promise.resolve(Collections.<K, V>emptyMap());
+        }
+        p.fulfilled(PromiseExecutors.syncExecutor(), new Action<Map<K, V>>() {
+            @Override
+            public void run(Map<K, V> values) {
+                for (Map.Entry<K, Deferred<V>> e : batch.entrySet()) {
+                    e.getValue().fulfill(values != null ? values.get(e.getKey()) : null);
+                }
+            }
+        }).rejected(PromiseExecutors.syncExecutor(), new Action<Throwable>() {
+            @Override
+            public void run(Throwable r) {
+                reject(batch, r);
+            }
+        });
+    }
+
+    private void reject(LinkedHashMap<K, Deferred<V>> batch, Throwable r) {
+        for (Deferred<V> deferred : batch.values()) {
+            deferred.reject(r);
+        }
+    }
+
+    /**
+     * Runs onTimeout for the timeout it was scheduled as.
+     */
+    private final class Expiry implements Runnable {
+        // assigned under the lock right after scheduling, before onTimeout can take the lock.
+        HashedWheelTimer.Timeout timeout;
+
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+    }
+}
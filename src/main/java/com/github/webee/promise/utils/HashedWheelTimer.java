@@ -0,0 +1,301 @@
+package com.github.webee.promise.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed wheel timer: all timeouts are driven by one worker thread that
+ * advances a wheel of buckets every tick, so pending timeouts cost memory,
+ * not threads. The precision is one tick.
+ * Tasks run on the worker thread and should be short, e.g. settling a promise.
+ */
+public class HashedWheelTimer {
+    private static final int INIT = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+
+    // max timeouts moved into the wheel per tick, so a burst can't stall the wheel.
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread worker;
+    private final AtomicInteger state = new AtomicInteger(INIT);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Timeout> timeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancellations = new ConcurrentLinkedQueue<>();
+    private volatile long startTime;
+
+    public HashedWheelTimer() {
+        this(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(tickDuration, unit, ticksPerWheel, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "promise-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, ThreadFactory threadFactory) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel must be in (0, 2^30]: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        worker = threadFactory.newThread(new Worker());
+    }
+
+    /**
+     * Schedules a task, the worker thread is started on first use.
+     *
+     * @param task  the task
+     * @param delay the delay
+     * @param unit  unit of the delay
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        timeouts.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case INIT:
+                if (state.compareAndSet(INIT, STARTED)) {
+                    long now = System.nanoTime();
+                    startTime = now == 0 ? 1 : now;
+                    worker.start();
+                }
+                break;
+            case STARTED:
+                break;
+            default:
+                throw new IllegalStateException("timer has been stopped");
+        }
+        while (startTime == 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Stops the timer, pending timeouts will never run.
+     */
+    public void stop() {
+        if (state.getAndSet(STOPPED) == STARTED) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return number of timeouts waiting to run
+     */
+    public int pendingTimeouts() {
+        return pending.get();
+    }
+
+    private class Worker implements Runnable {
+        private long tick;
+
+        @Override
+        public void run() {
+            while (state.get() == STARTED) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    break;
+                }
+                removeCancelled();
+                transferTimeouts();
+                wheel[(int) (tick & mask)].expire(deadline);
+                tick++;
+            }
+        }
+
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (;;) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - current + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return current;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (state.get() == STOPPED) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = cancellations.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        private void transferTimeouts() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                Timeout timeout = timeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.state != Timeout.INIT) {
+                    pending.decrementAndGet();
+                    continue;
+                }
+                long ticks = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (ticks - tick) / wheel.length;
+                // already expired timeouts run on the current tick.
+                wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts in one slot, accessed by the worker thread only.
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state != Timeout.INIT) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = INIT;
+
+        // accessed by the worker thread only.
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if it was cancelled before running
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+                return false;
+            }
+            timer.cancellations.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, e);
+            }
+        }
+    }
+}
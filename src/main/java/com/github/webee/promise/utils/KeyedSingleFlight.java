@@ -0,0 +1,130 @@
+package com.github.webee.promise.utils;
+
+import com.github.webee.promise.Deferred;
+import com.github.webee.promise.Promise;
+import com.github.webee.promise.PromiseExecutors;
+import com.github.webee.promise.PromiseTransform;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link SingletonWorker} per key: each key has at most one running and one
+ * pending run. Triggers that arrive while a key is running are collapsed into
+ * its pending run, and every caller gets the promise of the run that will
+ * observe its trigger. A key is removed once its last run settles, so idle keys
+ * don't accumulate. The first run of a key runs on the triggering thread, pending
+ * runs are started on {@link PromiseExecutors#defaultExecutor()}.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the run result
+ */
+public class KeyedSingleFlight<K, V> {
+    private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final PromiseTransform<K, V> work;
+
+    public KeyedSingleFlight(PromiseTransform<K, V> work) {
+        this.work = work;
+    }
+
+    /**
+     * Triggers a run for the key.
+     *
+     * @param key the key
+     * @return the new run if the key is idle, else the pending run
+     */
+    public Promise<V> start(K key) {
+        for (;;) {
+            Flight<V> flight = flights.get(key);
+            if (flight == null) {
+                Flight<V> created = new Flight<>();
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    flight = created;
+                }
+            }
+            Deferred<V> run;
+            synchronized (flight) {
+                if (flight.retired) {
+                    continue;
+                }
+                if (flight.running) {
+                    if (flight.next == null) {
+                        flight.next = new Deferred<>();
+                    }
+                    return flight.next.promise;
+                }
+                flight.running = true;
+                run = new Deferred<>();
+            }
+            watch(key, flight, run);
+            run(key, run);
+            return run.promise;
+        }
+    }
+
+    /**
+     * @return number of keys running or pending to run
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * Starts the pending run of the key, or removes the key, once the run settles.
+     */
+    private void watch(final K key, final Flight<V> flight, Deferred<V> run) {
+        run.promise.settled(PromiseExecutors.syncExecutor(), new Runnable() {
+            @Override
+            public void run() {
+                Deferred<V> next;
+                synchronized (flight) {
+                    next = flight.next;
+                    flight.next = null;
+                    if (next == null) {
+                        flight.running = false;
+                        flight.retired = true;
+                        flights.remove(key, flight);
+                        return;
+                    }
+                }
+                submit(key, flight, next);
+            }
+        });
+    }
+
+    private void run(K key, Deferred<V> run) {
+        Promise<V> p;
+        try {
+            p = work.run(key);
+        } catch (Throwable r) {
+            p = Promise.reject(r);
+        }
+        run.fulfill(p != null ? p : Promise.<V>resolve((V) null));
+    }
+
+    /**
+     * Starts the pending run on the default executor: the previous run may have
+     * been settled on the timer thread or a caller's I/O thread.
+     */
+    private void submit(final K key, Flight<V> flight, final Deferred<V> run) {
+        watch(key, flight, run);
+        try {
+            PromiseExecutors.defaultExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    KeyedSingleFlight.this.run(key, run);
+                }
+            });
+        } catch (Throwable r) {
+            // settles the flight like a failed run, so the key isn't stuck.
+            run.reject(r);
+        }
+    }
+
+    private static final class Flight<V> {
+        // guarded by this.
+        boolean running;
+        boolean retired;
+        Deferred<V> next;
+    }
+}
@@ -1,86 +1,333 @@
 package com.github.webee.promise.utils;
 
+import com.github.webee.promise.Deferred;
 import com.github.webee.promise.Promise;
 import com.github.webee.promise.PromiseExecutors;
+import com.github.webee.promise.functions.Action;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A singleton worker is a worker that can be triggered by call .start() at
  * any time, if it's not running, it will run, else it's pending to run.
  * for example, it can be use to sync data and ui: data update notify the ui
  * to update async, we can make load data as a singleton worker.
+ * No thread waits for a run: the pending run is started when the promise of
+ * the current run settles.
+ * A pending run can be delayed by debounce, throttle and max wait, which are
+ * scheduled on {@link PromiseExecutors#timer()}. Payloads passed to
+ * {@link #start(Object)} are accumulated and handed to a {@link BatchWork}.
  * Created by webee on 16/12/5.
+ *
+ * @param <P> type of the trigger payload
  */
-public class SingletonWorker {
-    private final static int INIT = 0;
-    private final static int RUNNING = 1;
-    private final static int RUNNING_WITH_PENDING = 2;
-
-    private final AtomicBoolean pending = new AtomicBoolean(false);
-    private final AtomicBoolean init = new AtomicBoolean(true);
-    private final AtomicInteger status = new AtomicInteger(INIT);
+public class SingletonWorker<P> {
+    private static final Action<Throwable> UNCAUGHT = new Action<Throwable>() {
+        @Override
+        public void run(Throwable r) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, r);
+        }
+    };
+
     private final Work work;
+    private final BatchWork<P> batchWork;
+    private volatile Action<Throwable> errorHandler = UNCAUGHT;
+    // guarded by this.
+    private boolean init;
+    private Run<P> current;
+    private Run<P> pending;
+    private long debounceNanos;
+    private long throttleNanos;
+    private long maxWaitNanos;
+    private long firstTrigger;
+    private long lastTrigger;
+    private long lastStart;
+    private boolean started;
+    private HashedWheelTimer.Timeout timeout;
 
     public SingletonWorker(Work work) {
-        this.work = work;
+        this(work, true);
     }
 
     public SingletonWorker(Work work, boolean init) {
         this.work = work;
-        this.init.set(init);
+        this.batchWork = null;
+        this.init = init;
+    }
+
+    public SingletonWorker(BatchWork<P> work) {
+        this(work, true);
+    }
+
+    public SingletonWorker(BatchWork<P> work, boolean init) {
+        this.work = null;
+        this.batchWork = work;
+        this.init = init;
+    }
+
+    /**
+     * Sets the handler of errors thrown or rejected by the work,
+     * errors go to the uncaught exception handler by default.
+     */
+    public void setErrorHandler(Action<Throwable> errorHandler) {
+        if (errorHandler == null) {
+            throw new NullPointerException("errorHandler");
+        }
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Debounce: the pending run starts only after no trigger arrives for the delay.
+     *
+     * @param delay the quiet period, 0 to disable
+     */
+    public synchronized void setDebounce(long delay, TimeUnit unit) {
+        debounceNanos = toNanos("delay", delay, unit);
+    }
+
+    /**
+     * Throttle: runs start at most once per interval.
+     *
+     * @param interval min interval between starts of two runs, 0 to disable
+     */
+    public synchronized void setThrottle(long interval, TimeUnit unit) {
+        throttleNanos = toNanos("interval", interval, unit);
+    }
+
+    /**
+     * Max wait of debounce: the pending run starts no later than the time
+     * after its first trigger, even if triggers keep arriving.
+     *
+     * @param maxWait max wait, 0 to disable
+     */
+    public synchronized void setMaxWait(long maxWait, TimeUnit unit) {
+        maxWaitNanos = toNanos("maxWait", maxWait, unit);
     }
 
-    public synchronized void init() {
-        init.set(true);
-        if (pending.compareAndSet(true, false)) {
-            start();
+    private static long toNanos(String name, long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException(name + " must not be negative: " + duration);
         }
+        return unit.toNanos(duration);
     }
 
-    private synchronized boolean tryRun() {
-        if (init.get()) {
-            if (status.compareAndSet(INIT, RUNNING)) {
-                return true;
+    public void init() {
+        Run<P> run;
+        synchronized (this) {
+            init = true;
+            run = tryStart();
+        }
+        submit(run);
+    }
+
+    /**
+     * Triggers the worker.
+     */
+    public void start() {
+        trigger(null, false);
+    }
+
+    /**
+     * Triggers the worker, same as {@link #start()}.
+     *
+     * @return the promise of the run that will observe this trigger
+     */
+    public Promise<?> trigger() {
+        return trigger(null, false);
+    }
+
+    /**
+     * Triggers the worker with a payload, the payloads of the triggers observed
+     * by one run are passed to the {@link BatchWork}.
+     *
+     * @param payload the payload, e.g. a changed key
+     * @return the promise of the run that will observe this trigger
+     */
+    public Promise<?> start(P payload) {
+        return trigger(payload, true);
+    }
+
+    private Promise<?> trigger(P payload, boolean hasPayload) {
+        Run<P> run;
+        Promise<Object> p;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (pending == null) {
+                pending = new Run<>();
+                firstTrigger = now;
+            }
+            lastTrigger = now;
+            if (hasPayload) {
+                pending.add(payload);
             }
-            status.compareAndSet(RUNNING, RUNNING_WITH_PENDING);
-        } else {
-            pending.set(true);
+            p = pending.deferred.promise;
+            run = tryStart();
         }
-        return false;
+        submit(run);
+        return p;
     }
 
-    private synchronized boolean shouldRun() {
-        return status.compareAndSet(RUNNING_WITH_PENDING, RUNNING);
+    /**
+     * @return the promise of the current run, null if it's not running
+     */
+    public synchronized Promise<?> current() {
+        return current != null ? current.deferred.promise : null;
     }
 
-    private synchronized void toStop() {
-        if (!status.compareAndSet(RUNNING, INIT)) {
-            status.set(INIT);
-            start();
+    /**
+     * Starts the pending run if it's ready, else makes sure the timer will try again.
+     *
+     * @return the run to submit, or null
+     */
+    private Run<P> tryStart() {
+        if (!init || current != null || pending == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long delay = readyAt() - now;
+        if (delay > 0) {
+            // triggers only move readyAt later, so an earlier timeout just tries again.
+            if (timeout == null) {
+                Expiry expiry = new Expiry();
+                timeout = expiry.timeout = PromiseExecutors.timer().schedule(expiry, delay, TimeUnit.NANOSECONDS);
+            }
+            return null;
         }
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        Run<P> run = current = pending;
+        pending = null;
+        lastStart = now;
+        started = true;
+        return run;
     }
 
-    public synchronized void start() {
-        if (tryRun()) {
+    private long readyAt() {
+        long at = lastTrigger + debounceNanos;
+        if (maxWaitNanos > 0 && at - (firstTrigger + maxWaitNanos) > 0) {
+            at = firstTrigger + maxWaitNanos;
+        }
+        if (started && throttleNanos > 0 && lastStart + throttleNanos - at > 0) {
+            at = lastStart + throttleNanos;
+        }
+        return at;
+    }
+
+    private void onTimeout(Expiry expiry) {
+        Run<P> run;
+        synchronized (this) {
+            // a stale timeout, the field may have been cleared or hold a newer one.
+            if (timeout != expiry.timeout) {
+                return;
+            }
+            timeout = null;
+            run = tryStart();
+        }
+        submit(run);
+    }
+
+    private void onSettled() {
+        Run<P> run;
+        synchronized (this) {
+            current = null;
+            run = tryStart();
+        }
+        submit(run);
+    }
+
+    private void submit(final Run<P> run) {
+        if (run == null) {
+            return;
+        }
+        run.deferred.promise.settled(PromiseExecutors.syncExecutor(), new Runnable() {
+            @Override
+            public void run() {
+                onSettled();
+            }
+        });
+        try {
             PromiseExecutors.defaultExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
-                    do {
-                        try {
-                            work.run().await();
-                        } catch (Throwable throwable) {
-                            throwable.printStackTrace();
-                        }
-                    } while (shouldRun());
-                    toStop();
+                    run.deferred.fulfill(call(run));
                 }
             });
+        } catch (Throwable r) {
+            run.deferred.reject(r);
+        }
+    }
+
+    private Promise<Object> call(Run<P> run) {
+        Promise<Object> p;
+        try {
+            p = work != null ? work.run() : batchWork.run(run.payloads());
+        } catch (Throwable r) {
+            p = Promise.reject(r);
+        }
+        if (p == null) {
+            return Promise.resolve(null);
+        }
+        return p.rejected(PromiseExecutors.syncExecutor(), new Action<Throwable>() {
+            @Override
+            public void run(Throwable r) {
+                try {
+                    errorHandler.run(r);
+                } catch (Throwable e) {
+                    UNCAUGHT.run(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs onTimeout for the timeout it was scheduled as.
+     */
+    private final class Expiry implements Runnable {
+        // assigned under the lock right after scheduling, before onTimeout can take the lock.
+        HashedWheelTimer.Timeout timeout;
+
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+    }
+
+    private static final class Run<P> {
+        final Deferred<Object> deferred = new Deferred<>();
+        // guarded by the worker.
+        private Set<P> payloads;
+
+        void add(P payload) {
+            if (payloads == null) {
+                payloads = new LinkedHashSet<>();
+            }
+            payloads.add(payload);
+        }
+
+        Set<P> payloads() {
+            return payloads != null ? Collections.unmodifiableSet(payloads) : Collections.<P>emptySet();
         }
     }
 
     public interface Work {
         Promise run();
     }
+
+    /**
+     * A work which gets the payloads of the triggers it observes.
+     *
+     * @param <P> type of the payload
+     */
+    public interface BatchWork<P> {
+        /**
+         * @param payloads distinct payloads in trigger order, empty if triggered by {@link SingletonWorker#start()} only
+         */
+        Promise run(Set<P> payloads);
+    }
 }
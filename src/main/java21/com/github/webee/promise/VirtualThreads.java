@@ -0,0 +1,20 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程支持, Java 21的实现
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("promise-virtual-", 1).factory());
+    }
+}
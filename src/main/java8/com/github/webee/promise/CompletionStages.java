@@ -0,0 +1,112 @@
+package com.github.webee.promise;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Promise和CompletionStage/CompletableFuture之间的转换, 需要Java 8+;
+ * 结果在完成方的线程上直接传递, 不经过执行器; 取消双向传播
+ */
+public final class CompletionStages {
+    private CompletionStages() {
+    }
+
+    /**
+     * 由CompletionStage生成Promise: 取消Promise时取消stage(stage支持toCompletableFuture时), stage被取消时取消Promise
+     *
+     * @param stage CompletionStage
+     * @param <T>   值类型
+     * @return 生成的Promise, stage由toCompletableFuture生成时返回原来的Promise(保留status)
+     */
+    public static <T> Promise<T> from(CompletionStage<T> stage) {
+        if (stage instanceof PromiseFuture) {
+            return ((PromiseFuture<T>) stage).promise;
+        }
+
+        final Promise<T> p = new Promise<>(Promise.NullStatus.instance);
+        final Transition<T> transition = p.transition();
+        final CompletableFuture<T> future = toFuture(stage);
+        if (future != null) {
+            p.handleInternal(p.new Handler() {
+                @Override
+                void onRejected(Throwable r) {
+                    if (r instanceof PromiseCanceledException) {
+                        future.cancel(false);
+                    }
+                }
+            });
+        }
+        stage.whenComplete((v, e) -> {
+            if (e == null) {
+                transition.fulfill(v);
+                return;
+            }
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e instanceof CancellationException) {
+                p.cancel();
+            } else {
+                transition.reject(e);
+            }
+        });
+        return p;
+    }
+
+    /**
+     * 由Promise生成CompletableFuture: 取消future时取消Promise, Promise被取消时取消future
+     *
+     * @param promise Promise
+     * @param <T>     值类型
+     * @return 生成的CompletableFuture
+     */
+    public static <T> CompletableFuture<T> toCompletableFuture(final Promise<T> promise) {
+        final PromiseFuture<T> future = new PromiseFuture<>(promise);
+        promise.handle(promise.new Handler() {
+            @Override
+            void onFulfilled(T v) {
+                future.complete(v);
+            }
+
+            @Override
+            void onRejected(Throwable r) {
+                if (r instanceof PromiseCanceledException) {
+                    future.cancel(false);
+                } else {
+                    future.completeExceptionally(r);
+                }
+            }
+        }, PromiseExecutors.syncExecutor());
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> toFuture(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 记录来源Promise的CompletableFuture
+     */
+    private static final class PromiseFuture<T> extends CompletableFuture<T> {
+        final Promise<T> promise;
+
+        PromiseFuture(Promise<T> promise) {
+            this.promise = promise;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean canceled = super.cancel(mayInterruptIfRunning);
+            if (canceled) {
+                promise.cancel(mayInterruptIfRunning);
+            }
+            return canceled;
+        }
+    }
+}
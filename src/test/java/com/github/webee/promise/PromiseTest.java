@@ -1,14 +1,45 @@
 package com.github.webee.promise;
 
+import com.github.webee.promise.cache.AsyncCache;
 import com.github.webee.promise.functions.Action;
 import com.github.webee.promise.functions.Fulfillment;
+import com.github.webee.promise.functions.Predicate;
 import com.github.webee.promise.functions.ThenFulfillment;
+import com.github.webee.promise.metrics.Histogram;
+import com.github.webee.promise.metrics.MetricsRecorder;
+import com.github.webee.promise.utils.Batcher;
+import com.github.webee.promise.utils.HashedWheelTimer;
+import com.github.webee.promise.utils.KeyedSingleFlight;
+import com.github.webee.promise.utils.SingletonWorker;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 
 /**
@@ -510,4 +541,1517 @@ public class PromiseTest {
             throwable.printStackTrace();
         }
     }
+
+    @Test
+    public void testConcurrentHandlers() throws Throwable {
+        final int n = 64;
+        final int m = 1000;
+        final Deferred<Integer> deferred = new Deferred<>();
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(n);
+        final CountDownLatch done = new CountDownLatch(n * m);
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        for (int i = 0; i < n; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int j = 0; j < m; j++) {
+                        deferred.promise.fulfilled(PromiseExecutors.syncExecutor(), new Action<Integer>() {
+                            @Override
+                            public void run(Integer v) {
+                                count.addAndGet(v);
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        started.await();
+        deferred.fulfill(1);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(n * m, count.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStatusListeners() throws Throwable {
+        final Deferred<Integer> deferred = new Deferred<>(0);
+        final AtomicInteger sum = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            deferred.promise.status(PromiseExecutors.syncExecutor(), new Action<Integer>() {
+                @Override
+                public void run(Integer v) {
+                    sum.addAndGet(v);
+                }
+            });
+        }
+        deferred.update(1);
+        deferred.update(2);
+        deferred.fulfill(0);
+        deferred.update(3);
+        Assert.assertEquals(9, sum.get());
+
+        // a listener registered concurrently with an update runs once for that status.
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Deferred<?>[] current = new Deferred<?>[1];
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        barrier.await();
+                        current[0].update(i);
+                        barrier.await();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        updater.setDaemon(true);
+        updater.start();
+        final AtomicInteger runs = new AtomicInteger();
+        Action<Object> count = new Action<Object>() {
+            @Override
+            public void run(Object v) {
+                runs.incrementAndGet();
+            }
+        };
+        try {
+            for (int i = 0; i < 10000; i++) {
+                Deferred<Integer> d = new Deferred<>();
+                current[0] = d;
+                runs.set(0);
+                barrier.await();
+                d.promise.status(PromiseExecutors.syncExecutor(), count);
+                barrier.await();
+                Assert.assertEquals(1, runs.get());
+            }
+        } finally {
+            // 失败时让updater退出
+            barrier.reset();
+        }
+        updater.join();
+    }
+
+    @Test
+    public void testAbortWhileFulfillingWithPromise() throws Throwable {
+        // the status of inner is forwarded synchronously, before outer links to inner.
+        Deferred<String> inner = new Deferred<>("s");
+        final Deferred<String> outer = new Deferred<>();
+        outer.promise.status(PromiseExecutors.syncExecutor(), new Action<Object>() {
+            @Override
+            public void run(Object s) {
+                outer.promise.cancel();
+            }
+        });
+        outer.fulfill(inner.promise);
+        assertCanceled(outer.promise);
+        assertCanceled(inner.promise);
+    }
+
+    @Test
+    public void testSettledFastPath() throws Throwable {
+        Assert.assertSame(Promise.resolve(null), Promise.resolve(null));
+        Assert.assertSame(Promise.resolve(true), Promise.resolve(true));
+        Assert.assertSame(Promise.resolve(false), Promise.resolve(false));
+        Assert.assertSame(Promise.resolve((Void) null), Promise.create());
+        Assert.assertNotSame(Promise.create(), Promise.create().handleOn(PromiseExecutors.syncExecutor()));
+
+        final AtomicInteger count = new AtomicInteger();
+        Promise<Integer> p = Promise.resolve(1).then(PromiseExecutors.syncExecutor(), new Transform<Integer, Integer>() {
+            @Override
+            public Integer run(Integer v) {
+                count.incrementAndGet();
+                return v + 1;
+            }
+        }).fulfilled(PromiseExecutors.syncExecutor(), new Action<Integer>() {
+            @Override
+            public void run(Integer v) {
+                count.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(2, count.get());
+        Assert.assertEquals(2, (int) p.await());
+    }
+
+    private static Promise<Integer> loop(final int i, final int n) {
+        if (i >= n) {
+            return Promise.resolve(i);
+        }
+        return Promise.resolve(i + 1).then(PromiseExecutors.syncExecutor(), new PromiseTransform<Integer, Integer>() {
+            @Override
+            public Promise<Integer> run(Integer v) {
+                return loop(v, n);
+            }
+        });
+    }
+
+    @Test
+    public void testDeepSyncChain() throws Throwable {
+        Assert.assertEquals(100000, (int) loop(0, 100000).await());
+
+        Deferred<Integer> deferred = new Deferred<>();
+        Promise<Integer> p = deferred.promise;
+        for (int i = 0; i < 100000; i++) {
+            p = p.then(PromiseExecutors.syncExecutor(), new Transform<Integer, Integer>() {
+                @Override
+                public Integer run(Integer v) {
+                    return v + 1;
+                }
+            });
+        }
+        deferred.fulfill(0);
+        Assert.assertEquals(100000, (int) p.await());
+    }
+
+    @Test
+    public void testAwaitInSyncCallback() throws Throwable {
+        final Transform<Integer, Integer> inc = new Transform<Integer, Integer>() {
+            @Override
+            public Integer run(Integer v) {
+                return v + 1;
+            }
+        };
+        final List<Object> results = new ArrayList<>();
+        Promise.resolve(1).fulfilled(PromiseExecutors.syncExecutor(), new Action<Integer>() {
+            @Override
+            public void run(Integer v) {
+                try {
+                    // the nested sync tasks are queued behind this callback, await runs them first.
+                    results.add(Promise.resolve(v).then(PromiseExecutors.syncExecutor(), inc)
+                            .then(PromiseExecutors.syncExecutor(), inc).await(2, TimeUnit.SECONDS));
+                    results.add(Promise.all(Promise.resolve(v), Promise.resolve(v).then(PromiseExecutors.syncExecutor(), inc))
+                            .await(2, TimeUnit.SECONDS));
+                    results.add(Promise.race(Promise.resolve(v).then(PromiseExecutors.syncExecutor(), inc))
+                            .await(2, TimeUnit.SECONDS));
+                    results.add(Promise.resolve(Promise.resolve(v)).await(2, TimeUnit.SECONDS));
+                } catch (Throwable r) {
+                    results.add(r);
+                }
+            }
+        });
+        Assert.assertEquals(Arrays.<Object>asList(3, Arrays.asList(1, 2), 2, 1), toLists(results));
+    }
+
+    private static List<Object> toLists(List<Object> results) {
+        List<Object> lists = new ArrayList<>();
+        for (Object r : results) {
+            if (r instanceof Iterable) {
+                List<Object> list = new ArrayList<>();
+                for (Object o : (Iterable<?>) r) {
+                    list.add(o);
+                }
+                r = list;
+            }
+            lists.add(r);
+        }
+        return lists;
+    }
+
+    @Test
+    public void testAllNonBlocking() throws Throwable {
+        List<Deferred<Integer>> deferreds = new ArrayList<>();
+        List<Promise<Integer>> promises = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Deferred<Integer> deferred = new Deferred<>();
+            deferreds.add(deferred);
+            promises.add(deferred.promise);
+        }
+        Promise<Iterable<Integer>> p = Promise.all(promises);
+        for (int i = deferreds.size() - 1; i >= 0; i--) {
+            deferreds.get(i).fulfill(i);
+        }
+        int i = 0;
+        for (Integer v : p.await()) {
+            Assert.assertEquals(i++, (int) v);
+        }
+        Assert.assertEquals(1000, i);
+
+        Iterable<Integer> r = Promise.all(-1, Promise.resolve(1), Promise.<Integer>reject(new Exception("xxx"))).await();
+        Assert.assertEquals(Arrays.asList(1, -1), r);
+        Assert.assertFalse(Promise.all(new ArrayList<Promise<Integer>>()).await().iterator().hasNext());
+    }
+
+    @Test
+    public void testAllFailFast() throws Throwable {
+        Deferred<Integer> slow = new Deferred<>();
+        Deferred<Integer> failing = new Deferred<>();
+        Promise<Iterable<Integer>> p = Promise.allFailFast(Promise.resolve(1), slow.promise, failing.promise);
+        failing.reject(new Exception("xxx"));
+        try {
+            p.await();
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertEquals("xxx", e.getMessage());
+        }
+        try {
+            slow.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+    }
+
+    @Test
+    public void testAllSettled() throws Throwable {
+        Exception e = new Exception("xxx");
+        List<Outcome<Integer>> res = new ArrayList<>();
+        for (Outcome<Integer> outcome : Promise.allSettled(Promise.resolve(1), Promise.<Integer>reject(e)).await()) {
+            res.add(outcome);
+        }
+        Assert.assertEquals(2, res.size());
+        Assert.assertTrue(res.get(0).fulfilled);
+        Assert.assertEquals(1, (int) res.get(0).value);
+        Assert.assertFalse(res.get(1).fulfilled);
+        Assert.assertSame(e, res.get(1).reason);
+    }
+
+    @Test
+    public void testRaceDetachesFromLongLivedInput() throws Throwable {
+        Deferred<Integer> shared = new Deferred<>();
+        for (int i = 0; i < 1000; i++) {
+            Deferred<Integer> a = new Deferred<>();
+            Deferred<Integer> b = new Deferred<>();
+            Promise<Integer> first = Promise.race(shared.promise, a.promise);
+            Promise<Integer> second = Promise.race(shared.promise, b.promise);
+            // the first race's handler is below the second one's when it is detached.
+            a.fulfill(i);
+            b.fulfill(i);
+            Assert.assertEquals(i, (int) first.await());
+            Assert.assertEquals(i, (int) second.await());
+            Assert.assertTrue(handlerCount(shared.promise) <= 2);
+        }
+        Assert.assertEquals(0, handlerCount(shared.promise));
+    }
+
+    private static int handlerCount(Promise<?> p) throws Exception {
+        Field field = Promise.class.getDeclaredField("handlers");
+        field.setAccessible(true);
+        int n = 0;
+        for (Promise.Callback h = (Promise.Callback) field.get(p); h != null; h = h.next) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testRaceCancelLosers() throws Throwable {
+        Deferred<String> winner = new Deferred<>();
+        Deferred<String> loser = new Deferred<>();
+        Promise<String> p = Promise.race(Arrays.asList(winner.promise, loser.promise), true);
+        winner.fulfill("a");
+        Assert.assertEquals("a", p.await());
+        try {
+            loser.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+    }
+
+    @Test
+    public void testCancelCombinatorResult() throws Throwable {
+        Deferred<String> a = new Deferred<>();
+        Deferred<String> b = new Deferred<>();
+        Assert.assertTrue(Promise.any(Arrays.asList(a.promise, b.promise), true).cancel());
+        assertCanceled(a.promise);
+        assertCanceled(b.promise);
+
+        // canceling a downstream of race cancels the race and its inputs without other dependents.
+        Deferred<String> c = new Deferred<>();
+        Deferred<String> shared = new Deferred<>();
+        shared.promise.then(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        Promise<String> race = Promise.race(c.promise, shared.promise);
+        Assert.assertTrue(race.then(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).cancel());
+        assertCanceled(race);
+        assertCanceled(c.promise);
+        Assert.assertEquals(1, handlerCount(shared.promise));
+        shared.fulfill("s");
+        Assert.assertEquals("s", shared.promise.await());
+    }
+
+    @Test
+    public void testAnySome() throws Throwable {
+        Deferred<String> slow = new Deferred<>();
+        Assert.assertEquals("b", Promise.any(Promise.<String>reject(new Exception("a")), Promise.resolve("b"), slow.promise).await());
+
+        Iterable<String> vs = Promise.some(2, Promise.<String>reject(new Exception("a")), Promise.resolve("b"), Promise.resolve("c")).await();
+        Assert.assertEquals(Arrays.asList("b", "c"), vs);
+
+        try {
+            Promise.any(Promise.<String>reject(new Exception("a")), Promise.<String>reject(new Exception("b"))).await();
+            Assert.fail();
+        } catch (AggregateException e) {
+            Assert.assertEquals(2, e.getReasons().size());
+        }
+
+        try {
+            Promise.some(2, Promise.<String>reject(new Exception("a")), Promise.resolve("b"), Promise.<String>reject(new Exception("c"))).await();
+            Assert.fail();
+        } catch (AggregateException e) {
+            Assert.assertEquals(2, e.getReasons().size());
+        }
+    }
+
+    @Test
+    public void testCancelPropagation() throws Throwable {
+        Transform<Integer, Integer> inc = new Transform<Integer, Integer>() {
+            @Override
+            public Integer run(Integer v) {
+                return v + 1;
+            }
+        };
+        Deferred<Integer> deferred = new Deferred<>();
+        Promise<Integer> p1 = deferred.promise.then(inc);
+        Promise<Integer> p2 = p1.then(inc);
+        Promise<Integer> p3 = p2.then(inc);
+        Assert.assertTrue(p2.cancel());
+        try {
+            deferred.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+        try {
+            p3.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+
+        Deferred<Integer> d = new Deferred<>();
+        Promise<Integer> q1 = d.promise.then(inc);
+        Promise<Integer> q2 = q1.then(inc);
+        q1.then(inc);
+        Assert.assertTrue(q2.cancel());
+        d.fulfill(1);
+        Assert.assertEquals(2, (int) q1.await());
+    }
+
+    @Test
+    public void testCancelThroughInternalHandlers() throws Throwable {
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // the timer handlers of delay and timeout are not dependents.
+        Promise<Void> delay = Promise.delay(1, TimeUnit.HOURS);
+        Assert.assertTrue(delay.then(noop).cancel());
+        assertCanceled(delay);
+
+        Deferred<String> f = new Deferred<>();
+        Promise<String> timeout = f.promise.timeout(1, TimeUnit.HOURS);
+        Assert.assertTrue(timeout.then(noop).cancel());
+        assertCanceled(timeout);
+        assertCanceled(f.promise);
+
+        // inputs of all without other dependents are canceled.
+        Deferred<String> a = new Deferred<>();
+        Deferred<String> b = new Deferred<>();
+        b.promise.then(noop);
+        Promise<Iterable<String>> all = Promise.all(a.promise, b.promise);
+        Assert.assertTrue(all.then(noop).cancel());
+        assertCanceled(all);
+        assertCanceled(a.promise);
+        b.fulfill("b");
+        Assert.assertEquals("b", b.promise.await());
+
+        Deferred<String> c = new Deferred<>();
+        Assert.assertTrue(Promise.allFailFast(c.promise).then(noop).cancel());
+        assertCanceled(c.promise);
+
+        // an intermediate promise is rejected only after its own upstream is released.
+        final Deferred<String> top = new Deferred<>();
+        final Promise<String> mid = top.promise.timeout(1, TimeUnit.HOURS);
+        final List<Promise<Object>> late = new ArrayList<>();
+        mid.handleInternal(mid.new Handler() {
+            @Override
+            void onRejected(Throwable r) {
+                late.add(top.promise.then(PromiseExecutors.syncExecutor(), new Transform<String, Object>() {
+                    @Override
+                    public Object run(String v) {
+                        return v;
+                    }
+                }));
+            }
+        });
+        Assert.assertTrue(mid.then(noop).cancel());
+        assertCanceled(late.get(0));
+        assertCanceled(top.promise);
+    }
+
+    private static void assertCanceled(Promise<?> p) throws Throwable {
+        try {
+            p.await(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+    }
+
+    @Test
+    public void testCancelInterrupt() throws Throwable {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Promise<Integer> p = Promise.resolve(1).then(PromiseExecutors.defaultExecutor(), new Transform<Integer, Integer>() {
+            @Override
+            public Integer run(Integer v) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return v;
+            }
+        });
+        started.await();
+        Assert.assertTrue(p.cancel(true));
+        Assert.assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimerDelay() throws Throwable {
+        long start = System.nanoTime();
+        Promise.delay(100, TimeUnit.MILLISECONDS).await();
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+        start = System.nanoTime();
+        Assert.assertEquals("v", Promise.resolve("v").delayed(100, TimeUnit.MILLISECONDS).await());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+        // 取消生成的Promise或者它的下游时取消定时.
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        HashedWheelTimer timer = PromiseExecutors.timer();
+        int pending = timer.pendingTimeouts();
+        Assert.assertTrue(Promise.resolve("v").delayed(1, TimeUnit.HOURS).cancel());
+        Assert.assertTrue(Promise.resolve("v").delayed(1, TimeUnit.HOURS).then(noop).cancel());
+        Assert.assertTrue(Promise.delay(1, TimeUnit.HOURS).then(noop).cancel());
+        Assert.assertTrue(new Deferred<String>().promise.timeout(1, TimeUnit.HOURS).then(noop).cancel());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (timer.pendingTimeouts() > pending && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(timer.pendingTimeouts() <= pending);
+
+        Deferred<String> deferred = new Deferred<>();
+        try {
+            deferred.promise.timeout(100, TimeUnit.MILLISECONDS).await();
+            Assert.fail();
+        } catch (AwaitTimeoutException ignored) {
+        }
+        try {
+            deferred.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+        Assert.assertEquals("v", Promise.resolve("v").timeout(100, TimeUnit.MILLISECONDS).await());
+    }
+
+    @Test
+    public void testHashedWheelTimer() throws Throwable {
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+        final CountDownLatch latch = new CountDownLatch(5000);
+        final AtomicInteger expired = new AtomicInteger();
+        List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            timeouts.add(timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired.incrementAndGet();
+                    latch.countDown();
+                }
+            }, 100 + i % 200, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            timeouts.get(i).cancel();
+        }
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(5000, expired.get());
+        Assert.assertEquals(0, timer.pendingTimeouts());
+        timer.stop();
+    }
+
+    @Test
+    public void testExecutorPresets() throws Throwable {
+        final CountDownLatch block = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    block.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+
+        MonitoredExecutor io = PromiseExecutors.newIoBoundExecutor(2, 2);
+        for (int i = 0; i < 4; i++) {
+            io.execute(blocking);
+        }
+        // the workers count as active once they pick up their first task.
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, io.getActiveCount());
+        Assert.assertEquals(2, io.getQueueSize());
+        try {
+            io.execute(blocking);
+            Assert.fail();
+        } catch (java.util.concurrent.RejectedExecutionException ignored) {
+        }
+
+        MonitoredExecutor callerRuns = PromiseExecutors.newCallerRunsExecutor(1, 1);
+        callerRuns.execute(blocking);
+        callerRuns.execute(blocking);
+        final Thread caller = Thread.currentThread();
+        final Thread[] ran = new Thread[1];
+        callerRuns.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = Thread.currentThread();
+            }
+        });
+        Assert.assertSame(caller, ran[0]);
+        block.countDown();
+
+        MonitoredExecutor cpu = PromiseExecutors.newCpuBoundExecutor(2);
+        Executor previous = PromiseExecutors.setDefaultExecutor(cpu);
+        try {
+            Assert.assertEquals(3, (int) Promise.resolve(1).then(new Transform<Integer, Integer>() {
+                @Override
+                public Integer run(Integer v) {
+                    Assert.assertTrue(Thread.currentThread().getName().startsWith("promise-cpu-"));
+                    return v + 2;
+                }
+            }).await());
+        } finally {
+            PromiseExecutors.setDefaultExecutor(previous);
+        }
+        io.shutdown();
+        callerRuns.shutdown();
+        cpu.shutdown();
+    }
+
+    @Test
+    public void testVirtualThreadExecutor() throws Throwable {
+        Assume.assumeTrue(PromiseExecutors.isVirtualThreadSupported());
+        MonitoredExecutor executor = PromiseExecutors.newVirtualThreadExecutor();
+        List<Promise<Integer>> promises = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10000; i++) {
+            final int n = i;
+            promises.add(Promise.resolve(null).then(executor, Transforms.delay(200, TimeUnit.MILLISECONDS))
+                    .then(executor, new Transform<Object, Integer>() {
+                        @Override
+                        public Integer run(Object o) throws Throwable {
+                            return Promise.resolve(n).await();
+                        }
+                    }));
+        }
+        int count = 0;
+        for (Integer ignored : Promise.all(promises).await()) {
+            count++;
+        }
+        Assert.assertEquals(10000, count);
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExecutorElision() throws Throwable {
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final ThreadLocal<Boolean> inPool = new ThreadLocal<>();
+        final AtomicInteger submits = new AtomicInteger();
+        ElidableExecutor executor = new ElidableExecutor() {
+            @Override
+            public boolean inExecutor() {
+                return inPool.get() != null;
+            }
+
+            @Override
+            public void execute(final Runnable command) {
+                submits.incrementAndGet();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        inPool.set(true);
+                        command.run();
+                    }
+                });
+            }
+        };
+
+        final Deferred<Integer> d = new Deferred<>();
+        Promise<Integer> p = d.promise;
+        for (int i = 0; i < 20; i++) {
+            p = p.then(executor, new Transform<Integer, Integer>() {
+                @Override
+                public Integer run(Integer v) {
+                    Assert.assertNotNull(inPool.get());
+                    return v + 1;
+                }
+            });
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                d.fulfill(0);
+            }
+        });
+        Assert.assertEquals(20, (int) p.await());
+        // the fulfill task, then one resubmit when the inline depth is exhausted.
+        Assert.assertEquals(2, submits.get());
+
+        // elision is opt-in through a wrapper.
+        final ElidableExecutor elidable = PromiseExecutors.elidable(pool);
+        final Deferred<Thread> wrapped = new Deferred<>();
+        final Promise<Boolean> inline = wrapped.promise.then(elidable, new Transform<Thread, Boolean>() {
+            @Override
+            public Boolean run(Thread t) {
+                return t == Thread.currentThread();
+            }
+        });
+        elidable.execute(new Runnable() {
+            @Override
+            public void run() {
+                wrapped.fulfill(Thread.currentThread());
+            }
+        });
+        Assert.assertTrue(inline.await());
+        pool.shutdown();
+
+        // the default executor never runs handlers inside fulfill().
+        final CountDownLatch signal = new CountDownLatch(1);
+        final Deferred<Integer> produced = new Deferred<>();
+        Promise<Boolean> ok = produced.promise.then(PromiseExecutors.defaultExecutor(), new Transform<Integer, Boolean>() {
+            @Override
+            public Boolean run(Integer v) {
+                try {
+                    return signal.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        });
+        PromiseExecutors.defaultExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                produced.fulfill(1);
+                signal.countDown();
+            }
+        });
+        Assert.assertTrue(ok.await());
+    }
+
+    @Test
+    public void testBatchedDispatch() throws Throwable {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final AtomicInteger submits = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submits.incrementAndGet();
+                pool.execute(command);
+            }
+        };
+
+        Deferred<Integer> d = new Deferred<>(0);
+        final CountDownLatch settled = new CountDownLatch(100);
+        final CountDownLatch updated = new CountDownLatch(100);
+        final AtomicInteger failures = new AtomicInteger();
+        // a failing handler doesn't stop the rest of its batch.
+        d.promise.settled(executor, new Runnable() {
+            @Override
+            public void run() {
+                failures.incrementAndGet();
+                throw new RuntimeException("handler failed");
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            d.promise.settled(executor, new Runnable() {
+                @Override
+                public void run() {
+                    settled.countDown();
+                }
+            });
+            d.promise.status(executor, new Action<Integer>() {
+                @Override
+                public void run(Integer s) {
+                    if (s == 1) {
+                        updated.countDown();
+                    }
+                }
+            });
+        }
+        // listeners registered on a promise with status run once on registration.
+        Thread.sleep(100);
+        submits.set(0);
+        d.update(1);
+        Assert.assertTrue(updated.await(1, TimeUnit.SECONDS));
+        // 100 listeners in chunks of 32.
+        Assert.assertEquals(4, submits.get());
+
+        submits.set(0);
+        d.fulfill(1);
+        Assert.assertTrue(settled.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(4, submits.get());
+        Assert.assertEquals(1, failures.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCompletionStages() throws Throwable {
+        final CompletableFuture<String> f0 = new CompletableFuture<>();
+        Promise<String> p0 = CompletionStages.from(f0);
+        final Thread[] completedOn = new Thread[1];
+        p0.fulfilled(PromiseExecutors.syncExecutor(), new Action<String>() {
+            @Override
+            public void run(String v) {
+                completedOn[0] = Thread.currentThread();
+            }
+        });
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                f0.complete("a");
+            }
+        });
+        t.start();
+        t.join();
+        Assert.assertEquals("a", p0.await());
+        Assert.assertSame(t, completedOn[0]);
+
+        CompletableFuture<String> f1 = new CompletableFuture<>();
+        f1.completeExceptionally(new IllegalStateException());
+        try {
+            CompletionStages.from(f1).await();
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        // cancellation both ways.
+        CompletableFuture<String> f2 = new CompletableFuture<>();
+        CompletionStages.from(f2).cancel();
+        Assert.assertTrue(f2.isCancelled());
+        CompletableFuture<String> f3 = new CompletableFuture<>();
+        Promise<String> p3 = CompletionStages.from(f3);
+        f3.cancel(false);
+        try {
+            p3.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+
+        Deferred<String> d4 = new Deferred<>(0);
+        CompletableFuture<String> f4 = CompletionStages.toCompletableFuture(d4.promise);
+        Assert.assertSame(d4.promise, CompletionStages.from(f4));
+        d4.fulfill("b");
+        Assert.assertEquals("b", f4.get());
+
+        Deferred<String> d5 = new Deferred<>();
+        CompletableFuture<String> f5 = CompletionStages.toCompletableFuture(d5.promise);
+        f5.cancel(false);
+        try {
+            d5.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+        Deferred<String> d6 = new Deferred<>();
+        CompletableFuture<String> f6 = CompletionStages.toCompletableFuture(d6.promise);
+        d6.promise.cancel();
+        Assert.assertTrue(f6.isCancelled());
+        Assert.assertTrue(CompletionStages.toCompletableFuture(Promise.reject(new IllegalStateException()))
+                .isCompletedExceptionally());
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Integer> {
+        final List<Object> signals = new ArrayList<>();
+        Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(Integer v) {
+            signals.add(v);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            signals.add(t.getClass());
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+
+    @Test
+    public void testStatusPublisher() throws Throwable {
+        Deferred<String> d = new Deferred<>();
+        RecordingSubscriber dropOldest = new RecordingSubscriber();
+        RecordingSubscriber latest = new RecordingSubscriber();
+        RecordingSubscriber error = new RecordingSubscriber();
+        StatusPublisher.<Integer>of(d.promise, 2, StatusPublisher.Overflow.DROP_OLDEST).subscribe(dropOldest);
+        StatusPublisher.<Integer>of(d.promise, 2, StatusPublisher.Overflow.LATEST).subscribe(latest);
+        StatusPublisher.<Integer>of(d.promise, 2, StatusPublisher.Overflow.ERROR).subscribe(error);
+
+        dropOldest.subscription.request(1);
+        for (int i = 1; i <= 5; i++) {
+            d.update(i);
+        }
+        Assert.assertEquals(Arrays.<Object>asList(1), dropOldest.signals);
+        Assert.assertEquals(Arrays.<Object>asList(StatusOverflowException.class), error.signals);
+
+        dropOldest.subscription.request(10);
+        latest.subscription.request(10);
+        Assert.assertEquals(Arrays.<Object>asList(1, 4, 5), dropOldest.signals);
+        Assert.assertEquals(Arrays.<Object>asList(5), latest.signals);
+
+        d.update(6);
+        d.fulfill("done");
+        Assert.assertEquals(Arrays.<Object>asList(1, 4, 5, 6, "complete"), dropOldest.signals);
+
+        // late subscribers get the current status, then the terminal signal.
+        RecordingSubscriber late = new RecordingSubscriber();
+        StatusPublisher<Integer> publisher = StatusPublisher.of(d.promise);
+        publisher.subscribe(late);
+        Assert.assertTrue(late.signals.isEmpty());
+        late.subscription.request(1);
+        Assert.assertEquals(Arrays.<Object>asList(6, "complete"), late.signals);
+
+        Deferred<String> rejected = new Deferred<>();
+        RecordingSubscriber failed = new RecordingSubscriber();
+        StatusPublisher.<Integer>of(rejected.promise).subscribe(failed);
+        rejected.update(1);
+        rejected.reject(new IllegalStateException());
+        Assert.assertEquals(Arrays.<Object>asList(IllegalStateException.class), failed.signals);
+
+        // request(0) in onNext: onError is signalled after onNext returns, and is not replaced by onComplete.
+        Deferred<String> invalid = new Deferred<>();
+        RecordingSubscriber reentrant = new RecordingSubscriber() {
+            @Override
+            public void onNext(Integer v) {
+                subscription.request(0);
+                signals.add(v);
+            }
+        };
+        StatusPublisher.<Integer>of(invalid.promise).subscribe(reentrant);
+        invalid.update(1);
+        invalid.update(2);
+        reentrant.subscription.request(1);
+        invalid.fulfill("done");
+        Assert.assertEquals(Arrays.<Object>asList(1, IllegalArgumentException.class), reentrant.signals);
+    }
+
+    @Test
+    public void testConflatingStatus() throws Throwable {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final List<Integer> seen = new ArrayList<>();
+        Deferred<String> d = new Deferred<>();
+        d.promise.status(executor, new Action<Integer>() {
+            @Override
+            public void run(Integer s) {
+                seen.add(s);
+            }
+        }, true);
+        d.promise.status(executor, new Action<Integer>() {
+            @Override
+            public void run(Integer s) {
+            }
+        });
+
+        // listeners run once on registration.
+        for (Runnable r : queued) {
+            r.run();
+        }
+        queued.clear();
+        seen.clear();
+
+        for (int i = 1; i <= 1000; i++) {
+            d.update(i);
+        }
+        // the first update batches both listeners, then only the plain listener is dispatched.
+        Assert.assertEquals(1000, queued.size());
+        queued.get(0).run();
+        Assert.assertEquals(Arrays.asList(1000), seen);
+
+        queued.clear();
+        d.update(1001);
+        d.update(1002);
+        Assert.assertEquals(2, queued.size());
+        queued.get(0).run();
+        Assert.assertEquals(Arrays.asList(1000, 1002), seen);
+    }
+
+    @Test
+    public void testMapConcurrency() throws Throwable {
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            inputs.add(i);
+        }
+        PromiseTransform<Integer, Integer> square = new PromiseTransform<Integer, Integer>() {
+            @Override
+            public Promise<Integer> run(final Integer v) {
+                int n = running.incrementAndGet();
+                while (maxRunning.get() < n && !maxRunning.compareAndSet(maxRunning.get(), n)) {
+                }
+                final Deferred<Integer> d = new Deferred<>();
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        running.decrementAndGet();
+                        d.fulfill(v * v);
+                    }
+                });
+                return d.promise;
+            }
+        };
+        int i = 0;
+        for (int v : Promise.map(inputs, square, 4).await()) {
+            Assert.assertEquals(i * i, v);
+            i++;
+        }
+        Assert.assertEquals(200, i);
+        Assert.assertTrue(maxRunning.get() <= 4);
+
+        final AtomicInteger sum = new AtomicInteger();
+        Promise.each(inputs, square, 3, new Action<Integer>() {
+            @Override
+            public void run(Integer v) {
+                sum.addAndGet(v);
+            }
+        }).await();
+        Assert.assertEquals(2646700, sum.get());
+
+        // synchronous transforms over a large input keep a flat stack.
+        final AtomicInteger count = new AtomicInteger();
+        Promise.each(Collections.nCopies(100000, 1), new PromiseTransform<Integer, Integer>() {
+            @Override
+            public Promise<Integer> run(Integer v) {
+                return Promise.resolve(v);
+            }
+        }, 16, new Action<Integer>() {
+            @Override
+            public void run(Integer v) {
+                count.incrementAndGet();
+            }
+        }).await();
+        Assert.assertEquals(100000, count.get());
+
+        final Deferred<Integer> hanging = new Deferred<>();
+        try {
+            Promise.map(Arrays.asList(1, 2, 3), new PromiseTransform<Integer, Integer>() {
+                @Override
+                public Promise<Integer> run(Integer v) {
+                    return v == 1 ? hanging.promise : Promise.<Integer>reject(new IllegalStateException());
+                }
+            }, 2).await();
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            hanging.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRetry() throws Throwable {
+        final AtomicInteger calls = new AtomicInteger();
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        RetryPolicy policy = new RetryPolicy().withMaxAttempts(4).withBackoff(10, 100, TimeUnit.MILLISECONDS);
+        String v = Promise.retry(new Callable<Promise<String>>() {
+            @Override
+            public Promise<String> call() {
+                threads.add(Thread.currentThread().getName());
+                if (calls.incrementAndGet() < 3) {
+                    return Promise.reject(new IllegalStateException());
+                }
+                return Promise.resolve("ok");
+            }
+        }, policy).await();
+        Assert.assertEquals("ok", v);
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(1, policy.getStats().getCalls());
+        Assert.assertEquals(3, policy.getStats().getAttempts());
+        Assert.assertEquals(2, policy.getStats().getRetries());
+        Assert.assertEquals(1, policy.getStats().getSucceeded());
+        // retries run on the default executor, not on the timer thread.
+        Assert.assertFalse(threads.toString(), threads.contains("promise-timer"));
+
+        // not retried when the predicate says no.
+        calls.set(0);
+        try {
+            Promise.retry(new Callable<Promise<String>>() {
+                @Override
+                public Promise<String> call() {
+                    calls.incrementAndGet();
+                    throw new IllegalArgumentException();
+                }
+            }, policy.withRetryOn(new Predicate<Throwable>() {
+                @Override
+                public boolean test(Throwable r) {
+                    return r instanceof IllegalStateException;
+                }
+            })).await();
+            Assert.fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        Assert.assertEquals(1, calls.get());
+
+        // the deadline cancels the running attempt.
+        final Deferred<String> slow = new Deferred<>();
+        try {
+            Promise.retry(new Callable<Promise<String>>() {
+                @Override
+                public Promise<String> call() {
+                    return slow.promise;
+                }
+            }, policy.withDeadline(50, TimeUnit.MILLISECONDS)).await();
+            Assert.fail();
+        } catch (AwaitTimeoutException ignored) {
+        }
+        try {
+            slow.promise.await();
+            Assert.fail();
+        } catch (PromiseCanceledException ignored) {
+        }
+
+        // a backoff past the deadline times out as well, with the last error as the cause.
+        final IllegalStateException error = new IllegalStateException();
+        try {
+            Promise.retry(new Callable<Promise<String>>() {
+                @Override
+                public Promise<String> call() {
+                    return Promise.reject(error);
+                }
+            }, policy.withBackoff(1, 1, TimeUnit.SECONDS).withDeadline(100, TimeUnit.MILLISECONDS)).await();
+            Assert.fail();
+        } catch (AwaitTimeoutException e) {
+            Assert.assertSame(error, e.getCause());
+        }
+
+        // canceling stops pending retries.
+        calls.set(0);
+        Promise<String> p = Promise.retry(new Callable<Promise<String>>() {
+            @Override
+            public Promise<String> call() {
+                calls.incrementAndGet();
+                return Promise.reject(new IllegalStateException());
+            }
+        }, policy.withBackoff(100, 100, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(p.cancel());
+        Thread.sleep(200);
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testAsyncCache() throws Throwable {
+        final AtomicInteger loads = new AtomicInteger();
+        final List<Deferred<String>> pending = new ArrayList<>();
+        AsyncCache<Integer, String> cache = AsyncCache.builder(new PromiseTransform<Integer, String>() {
+            @Override
+            public Promise<String> run(Integer key) {
+                loads.incrementAndGet();
+                if (key < 0) {
+                    return Promise.reject(new IllegalArgumentException());
+                }
+                if (key == 0) {
+                    Deferred<String> d = new Deferred<>();
+                    pending.add(d);
+                    return d.promise;
+                }
+                return Promise.resolve("v" + key);
+            }
+        }).maximumSize(10).build();
+
+        // concurrent loads of one key are coalesced.
+        Promise<String> p1 = cache.get(0);
+        Promise<String> p2 = cache.get(0);
+        Assert.assertSame(p1, p2);
+        Assert.assertEquals(1, loads.get());
+        pending.get(0).fulfill("v0");
+        Assert.assertEquals("v0", p2.await());
+
+        // rejections are not cached.
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get(-1).await();
+                Assert.fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        Assert.assertEquals(3, loads.get());
+        Assert.assertNull(cache.getIfPresent(-1));
+
+        // size-bounded, frequently used keys survive.
+        for (int i = 1; i <= 100; i++) {
+            cache.get(i);
+            cache.get(0);
+        }
+        Assert.assertTrue(cache.size() <= 10);
+        Assert.assertNotNull(cache.getIfPresent(0));
+        Assert.assertEquals(91, cache.stats().getEvictions());
+
+        cache.invalidate(0);
+        Assert.assertNull(cache.getIfPresent(0));
+        Assert.assertEquals(2, cache.stats().getLoadFailures());
+
+        final AtomicInteger version = new AtomicInteger();
+        AsyncCache<String, Integer> ttl = AsyncCache.builder(new PromiseTransform<String, Integer>() {
+            @Override
+            public Promise<Integer> run(String key) {
+                return Promise.resolve(version.incrementAndGet());
+            }
+        }).expireAfterWrite(200, TimeUnit.MILLISECONDS).refreshAfterWrite(50, TimeUnit.MILLISECONDS).build();
+        Assert.assertEquals(1, (int) ttl.get("k").await());
+        Thread.sleep(80);
+        // refresh-ahead returns the current value and reloads in the background.
+        Assert.assertEquals(1, (int) ttl.get("k").await());
+        Assert.assertEquals(2, (int) ttl.get("k").await());
+        Assert.assertEquals(1, ttl.stats().getRefreshes());
+        Thread.sleep(250);
+        Assert.assertEquals(3, (int) ttl.get("k").await());
+
+        // an invalidation between publishing a node and linking it into the lru leaves no orphan node:
+        // holding the (reentrant) lru lock parks the loading thread right before linking.
+        final AsyncCache<Integer, String> racy = AsyncCache.builder(new PromiseTransform<Integer, String>() {
+            @Override
+            public Promise<String> run(Integer key) {
+                return Promise.resolve("v" + key);
+            }
+        }).build();
+        Object lru = field(AsyncCache.class, "lru").get(racy);
+        ReentrantLock lock = (ReentrantLock) field(lru.getClass(), "lock").get(lru);
+        lock.lock();
+        Thread loader;
+        try {
+            loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    racy.get(1);
+                }
+            });
+            loader.start();
+            while (!lock.hasQueuedThread(loader)) {
+                Thread.sleep(1);
+            }
+            racy.invalidate(1);
+        } finally {
+            lock.unlock();
+        }
+        loader.join();
+        Assert.assertEquals(0, racy.size());
+        Assert.assertEquals(0, field(lru.getClass(), "size").getLong(lru));
+    }
+
+    private static Field field(Class<?> cls, String name) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    @Test
+    public void testKeyedSingleFlight() throws Throwable {
+        final List<Deferred<Integer>> runs = Collections.synchronizedList(new ArrayList<Deferred<Integer>>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        KeyedSingleFlight<String, Integer> flight = new KeyedSingleFlight<>(new PromiseTransform<String, Integer>() {
+            @Override
+            public Promise<Integer> run(String key) {
+                Deferred<Integer> d = new Deferred<>();
+                threads.add(Thread.currentThread());
+                runs.add(d);
+                return d.promise;
+            }
+        });
+
+        Promise<Integer> p1 = flight.start("a");
+        // triggers while running collapse into one pending run.
+        Promise<Integer> p2 = flight.start("a");
+        Promise<Integer> p3 = flight.start("a");
+        Assert.assertNotSame(p1, p2);
+        Assert.assertSame(p2, p3);
+        Promise<Integer> other = flight.start("b");
+        Assert.assertEquals(2, runs.size());
+        Assert.assertEquals(2, flight.size());
+
+        runs.get(0).reject(new IllegalStateException());
+        try {
+            p1.await();
+            Assert.fail();
+        } catch (IllegalStateException ignored) {
+        }
+        // the pending run starts after the current one settles, even if it was rejected,
+        // on the default executor rather than the settling thread.
+        awaitSize(runs, 3);
+        Assert.assertNotSame(Thread.currentThread(), threads.get(2));
+        Assert.assertNotSame(p2, flight.start("a"));
+        runs.get(2).fulfill(2);
+        Assert.assertEquals(2, (int) p2.await());
+        awaitSize(runs, 4);
+
+        runs.get(3).fulfill(3);
+        runs.get(1).fulfill(1);
+        Assert.assertEquals(1, (int) other.await());
+        // idle keys are removed.
+        Assert.assertEquals(0, flight.size());
+        Assert.assertEquals(4, runs.size());
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(size, list.size());
+    }
+
+    @Test
+    public void testSingletonWorker() throws Throwable {
+        final LinkedBlockingQueue<Deferred<Object>> runs = new LinkedBlockingQueue<>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        SingletonWorker<Void> worker = new SingletonWorker<Void>(new SingletonWorker.Work() {
+            @Override
+            public Promise run() {
+                Deferred<Object> d = new Deferred<>();
+                runs.add(d);
+                return d.promise;
+            }
+        }, false);
+        worker.setErrorHandler(new Action<Throwable>() {
+            @Override
+            public void run(Throwable r) {
+                errors.add(r);
+            }
+        });
+
+        // triggers before init are pending.
+        Promise<?> p1 = worker.trigger();
+        Assert.assertNull(worker.current());
+        worker.init();
+        Assert.assertSame(p1, worker.current());
+        Deferred<Object> run1 = runs.poll(1, TimeUnit.SECONDS);
+
+        Promise<?> p2 = worker.trigger();
+        Assert.assertSame(p2, worker.trigger());
+        Assert.assertNotSame(p1, p2);
+
+        IllegalStateException error = new IllegalStateException();
+        run1.reject(error);
+        // the pending run starts after a rejected run, the error goes to the handler.
+        Deferred<Object> run2 = runs.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(run2);
+        Assert.assertEquals(Collections.singletonList(error), errors);
+        Assert.assertSame(p2, worker.current());
+        run2.fulfill("done");
+        Assert.assertEquals("done", p2.await());
+        Assert.assertNull(runs.poll(50, TimeUnit.MILLISECONDS));
+        Assert.assertNull(worker.current());
+    }
+
+    @Test
+    public void testSingletonWorkerDebounce() throws Throwable {
+        final LinkedBlockingQueue<Set<Integer>> batches = new LinkedBlockingQueue<>();
+        SingletonWorker<Integer> worker = new SingletonWorker<>(new SingletonWorker.BatchWork<Integer>() {
+            @Override
+            public Promise run(Set<Integer> payloads) {
+                batches.add(payloads);
+                return Promise.resolve(null);
+            }
+        });
+        worker.setDebounce(100, TimeUnit.MILLISECONDS);
+        worker.setMaxWait(300, TimeUnit.MILLISECONDS);
+
+        // a burst is collapsed into one run with the distinct payloads.
+        Promise<?> p = worker.start(1);
+        Assert.assertSame(p, worker.start(2));
+        Assert.assertSame(p, worker.start(1));
+        Assert.assertNull(worker.current());
+        p.await();
+        Assert.assertEquals(Arrays.asList(1, 2), new ArrayList<>(batches.poll()));
+
+        // max wait bounds the delay of a continuous burst.
+        long start = System.nanoTime();
+        p = worker.start(3);
+        while (batches.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+            worker.start(4);
+            Thread.sleep(20);
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        p.await();
+        Assert.assertTrue("waited " + waited, waited >= 250 && waited < 1000);
+        Assert.assertEquals(Arrays.asList(3, 4), new ArrayList<>(batches.poll()));
+
+        final AtomicInteger runs = new AtomicInteger();
+        SingletonWorker<Void> throttled = new SingletonWorker<Void>(new SingletonWorker.Work() {
+            @Override
+            public Promise run() {
+                runs.incrementAndGet();
+                return Promise.resolve(null);
+            }
+        });
+        throttled.setThrottle(200, TimeUnit.MILLISECONDS);
+        start = System.nanoTime();
+        throttled.trigger().await();
+        Promise<?> second = throttled.trigger();
+        Assert.assertSame(second, throttled.trigger());
+        second.await();
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+        Assert.assertEquals(2, runs.get());
+
+        // start() keeps its baseline signature for compiled callers.
+        Assert.assertEquals(void.class, SingletonWorker.class.getMethod("start").getReturnType());
+    }
+
+    @Test
+    public void testBatcher() throws Throwable {
+        final List<Set<Integer>> calls = Collections.synchronizedList(new ArrayList<Set<Integer>>());
+        Batcher<Integer, String> batcher = new Batcher<>(new PromiseTransform<Set<Integer>, Map<Integer, String>>() {
+            @Override
+            public Promise<Map<Integer, String>> run(Set<Integer> keys) {
+                calls.add(new HashSet<>(keys));
+                Map<Integer, String> values = new HashMap<>();
+                for (Integer key : keys) {
+                    if (key < 0) {
+                        return Promise.reject(new IllegalArgumentException());
+                    }
+                    if (key > 0) {
+                        values.put(key, "v" + key);
+                    }
+                }
+                return Promise.resolve(values);
+            }
+        }, 3, 50, TimeUnit.MILLISECONDS);
+
+        // keys within the window are sent in one call, duplicates share a promise.
+        Promise<String> p1 = batcher.load(1);
+        Promise<String> p2 = batcher.load(2);
+        Assert.assertSame(p1, batcher.load(1));
+        Assert.assertEquals("v1", p1.await());
+        Assert.assertEquals("v2", p2.await());
+        Assert.assertEquals(Collections.singletonList(new HashSet<>(Arrays.asList(1, 2))), calls);
+
+        // a full batch is dispatched at once, missing keys resolve to null.
+        Promise<String> p0 = batcher.load(0);
+        batcher.load(3);
+        Promise<String> p4 = batcher.load(4);
+        Assert.assertEquals(2, calls.size());
+        Assert.assertNull(p0.await());
+        Assert.assertEquals("v4", p4.await());
+
+        // a failed batch rejects each of its keys.
+        Promise<String> bad = batcher.load(-1);
+        Promise<String> good = batcher.load(5);
+        batcher.dispatch();
+        for (Promise<String> p : Arrays.asList(bad, good)) {
+            try {
+                p.await();
+                Assert.fail();
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        Assert.assertEquals(3, calls.size());
+
+        // a timeout firing after its batch was taken leaves the next batch its own window.
+        Batcher<Integer, String> slow = new Batcher<>(new PromiseTransform<Set<Integer>, Map<Integer, String>>() {
+            @Override
+            public Promise<Map<Integer, String>> run(Set<Integer> keys) {
+                return Promise.resolve(Collections.<Integer, String>emptyMap());
+            }
+        }, 10, 300, TimeUnit.MILLISECONDS);
+        Promise<String> next;
+        long taken;
+        synchronized (slow) {
+            slow.load(6);
+            // the first timeout fires and blocks on the batcher.
+            Thread.sleep(600);
+            slow.dispatch();
+            next = slow.load(7);
+            taken = System.nanoTime();
+        }
+        next.await();
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - taken);
+        Assert.assertTrue("waited " + waited + "ms", waited >= 200);
+    }
+
+    @Test
+    public void testMetrics() throws Throwable {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500, snapshot.getMean());
+        Assert.assertEquals(1000, snapshot.getMax());
+        Assert.assertTrue(snapshot.toString(), snapshot.getP50() >= 500 && snapshot.getP50() <= 500 * 9 / 8);
+        Assert.assertTrue(snapshot.toString(), snapshot.getP99() >= 990 && snapshot.getP99() <= 1000);
+
+        MetricsRecorder recorder = MetricsRecorder.install();
+        try {
+            recorder.registerMBean();
+            Deferred<Integer> fulfilled = new Deferred<>();
+            Deferred<Integer> rejected = new Deferred<>();
+            Deferred<Integer> pending = new Deferred<>();
+            Promise<Integer> p = fulfilled.promise.then(PromiseExecutors.defaultExecutor(), new Transform<Integer, Integer>() {
+                @Override
+                public Integer run(Integer v) {
+                    return v + 1;
+                }
+            });
+            fulfilled.fulfill(1);
+            rejected.reject(new IllegalStateException());
+            Assert.assertEquals(2, (int) p.await());
+
+            Assert.assertTrue(recorder.getCreated() >= 4);
+            Assert.assertTrue(recorder.getSettled() >= 3);
+            Assert.assertTrue(recorder.getRejected() >= 1);
+            Assert.assertTrue(recorder.getPending() >= 1);
+            Assert.assertTrue(recorder.getSettleNanos().getCount() >= 3);
+            // a task is recorded after it returns, which can be after await() has returned.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (recorder.getRunNanos().getCount() < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(recorder.getRunNanos().getCount() >= 1);
+
+            ObjectName name = new ObjectName(MetricsRecorder.OBJECT_NAME);
+            Assert.assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Pending") >= 1);
+            CompositeData queueWait = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueueWaitNanos");
+            Assert.assertTrue((Long) queueWait.get("count") >= 1);
+            Assert.assertTrue(recorder.getExecutorPoolSize() >= 1);
+            pending.fulfill(0);
+        } finally {
+            PromiseMetrics.install(null);
+            recorder.unregisterMBean();
+        }
+    }
 }